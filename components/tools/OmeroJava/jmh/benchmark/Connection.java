@@ -0,0 +1,87 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2021 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import omero.gateway.Gateway;
+import omero.gateway.LoginCredentials;
+import omero.gateway.SecurityContext;
+import omero.gateway.model.ExperimenterData;
+import omero.log.SimpleLogger;
+
+/**
+ * Connects to the server configured via <code>ICE_CONFIG</code> as root,
+ * in the same way as the gateway integration tests.
+ * Shared by all the threads of a benchmark.
+ *
+ * @since 5.6.0
+ */
+@State(Scope.Benchmark)
+public class Connection {
+
+    /** The gateway used by the benchmarks. */
+    Gateway gw;
+
+    /** The context of the root user. */
+    SecurityContext ctx;
+
+    /**
+     * Connects to the server.
+     *
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @Setup
+    public void connect() throws Exception {
+        omero.client client = new omero.client();
+        LoginCredentials c = new LoginCredentials();
+        try {
+            c.getServer().setHost(client.getProperty("omero.host"));
+            c.getServer().setPort(
+                    Integer.parseInt(client.getProperty("omero.port")));
+            c.getUser().setUsername("root");
+            c.getUser().setPassword(client.getProperty("omero.rootpass"));
+        } finally {
+            client.__del__();
+        }
+        gw = new Gateway(new SimpleLogger());
+        ExperimenterData root = gw.connect(c);
+        ctx = new SecurityContext(root.getDefaultGroup().getGroupId());
+        ctx.setExperimenter(root);
+    }
+
+    /**
+     * Disconnects from the server.
+     *
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @TearDown
+    public void disconnect() throws Exception {
+        if (gw != null) {
+            gw.disconnect();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2021 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import omero.gateway.facility.BrowseFacility;
+import omero.gateway.facility.RawDataFacility;
+import omero.gateway.model.PixelsData;
+import omero.gateway.rnd.Plane2D;
+
+/**
+ * Measures the retrieval of planes and tiles via {@link RawDataFacility}.
+ * The image to read is given with <code>-p imageId=...</code>.
+ *
+ * @since 5.6.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class RawDataBenchmark {
+
+    /** The id of the image to read. */
+    @Param({"1"})
+    public long imageId;
+
+    /** The size of the square tiles to read. */
+    @Param({"256"})
+    public int tileSize;
+
+    private RawDataFacility rdf;
+
+    private PixelsData pixels;
+
+    /**
+     * Loads the image.
+     *
+     * @param conn
+     *            The connection.
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @Setup
+    public void setUp(Connection conn) throws Exception {
+        rdf = conn.gw.getFacility(RawDataFacility.class);
+        pixels = conn.gw.getFacility(BrowseFacility.class)
+                .getImage(conn.ctx, imageId).getDefaultPixels();
+    }
+
+    /**
+     * Closes the pixels store.
+     *
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        if (rdf != null) {
+            rdf.close();
+        }
+    }
+
+    @Benchmark
+    public Plane2D getPlane(Connection conn) throws Exception {
+        return rdf.getPlane(conn.ctx, pixels, 0, 0, 0);
+    }
+
+    @Benchmark
+    public Plane2D getTile(Connection conn) throws Exception {
+        return rdf.getTile(conn.ctx, pixels, 0, 0, 0, 0, 0,
+                Math.min(tileSize, pixels.getSizeX()),
+                Math.min(tileSize, pixels.getSizeY()));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2021 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import omero.api.IQueryPrx;
+import omero.api.IUpdatePrx;
+import omero.api.RenderingEnginePrx;
+import omero.api.ThumbnailStorePrx;
+import omero.cmd.CmdCallbackI;
+import omero.cmd.Delete2;
+import omero.gateway.facility.BrowseFacility;
+import omero.model.IObject;
+import omero.model.TagAnnotationI;
+import omero.romio.PlaneDef;
+import omero.sys.ParametersI;
+
+/**
+ * Measures the thumbnail, rendering, query and update services.
+ * The image used is given with <code>-p imageId=...</code>.
+ *
+ * @since 5.6.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ServiceBenchmark {
+
+    /** The id of the image to use. */
+    @Param({"1"})
+    public long imageId;
+
+    /** The number of objects to query or save per call. */
+    @Param({"100"})
+    public int batchSize;
+
+    private ThumbnailStorePrx thumbnails;
+
+    private RenderingEnginePrx re;
+
+    private IQueryPrx query;
+
+    private IUpdatePrx update;
+
+    private List<Long> pixelsIds;
+
+    private PlaneDef pDef;
+
+    private ParametersI param;
+
+    private Connection conn;
+
+    /** The ids of the tags saved during the current iteration. */
+    private List<Long> savedIds = new ArrayList<Long>();
+
+    /**
+     * Creates the services and loads the rendering engine.
+     *
+     * @param conn
+     *            The connection.
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @Setup
+    public void setUp(Connection conn) throws Exception {
+        this.conn = conn;
+        long pixelsId = conn.gw.getFacility(BrowseFacility.class)
+                .getImage(conn.ctx, imageId).getDefaultPixels().getId();
+        pixelsIds = Collections.singletonList(pixelsId);
+        thumbnails = conn.gw.getThumbnailService(conn.ctx);
+        re = conn.gw.getRenderingService(conn.ctx, pixelsId);
+        re.lookupPixels(pixelsId);
+        if (!re.lookupRenderingDef(pixelsId)) {
+            re.resetDefaultSettings(true);
+            re.lookupRenderingDef(pixelsId);
+        }
+        re.load();
+        pDef = new PlaneDef();
+        pDef.slice = omero.romio.XY.value;
+        query = conn.gw.getQueryService(conn.ctx);
+        update = conn.gw.getUpdateService(conn.ctx);
+        param = new ParametersI();
+        param.page(0, batchSize);
+    }
+
+    /**
+     * Closes the stateful services.
+     *
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        if (thumbnails != null) {
+            thumbnails.close();
+        }
+        if (re != null) {
+            re.close();
+        }
+    }
+
+    /**
+     * Deletes the tags saved during the iteration so that the database
+     * does not grow from one iteration to the next.
+     *
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @TearDown(Level.Iteration)
+    public void deleteSaved() throws Exception {
+        if (savedIds.isEmpty()) {
+            return;
+        }
+        Map<String, List<Long>> targets = new HashMap<String, List<Long>>();
+        targets.put("TagAnnotation", savedIds);
+        Delete2 delete = new Delete2();
+        delete.targetObjects = targets;
+        CmdCallbackI cb = conn.gw.submit(conn.ctx, delete);
+        try {
+            cb.loop(100, 1000);
+        } finally {
+            cb.close(true);
+        }
+        savedIds.clear();
+    }
+
+    @Benchmark
+    public Map<Long, byte[]> getThumbnailSet() throws Exception {
+        return thumbnails.getThumbnailSet(omero.rtypes.rint(96),
+                omero.rtypes.rint(96), pixelsIds);
+    }
+
+    @Benchmark
+    public byte[] renderCompressed() throws Exception {
+        return re.renderCompressed(pDef);
+    }
+
+    @Benchmark
+    public List<IObject> findAllByQuery() throws Exception {
+        return query.findAllByQuery("select i from Image i", param);
+    }
+
+    @Benchmark
+    public List<IObject> saveAndReturnArray() throws Exception {
+        List<IObject> tags = new ArrayList<IObject>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            TagAnnotationI tag = new TagAnnotationI();
+            tag.setTextValue(omero.rtypes.rstring("benchmark"));
+            tags.add(tag);
+        }
+        List<IObject> saved = update.saveAndReturnArray(tags);
+        for (IObject tag : saved) {
+            savedIds.add(tag.getId().getValue());
+        }
+        return saved;
+    }
+}
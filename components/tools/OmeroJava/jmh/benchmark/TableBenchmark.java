@@ -0,0 +1,107 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2021 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import omero.grid.Data;
+import omero.grid.TablePrx;
+import omero.model.OriginalFileI;
+
+/**
+ * Measures the reading of rows from an OMERO.tables table.
+ * The original file of the table is given with
+ * <code>-p tableFileId=...</code>.
+ *
+ * @since 5.6.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class TableBenchmark {
+
+    /** The id of the original file of the table. */
+    @Param({"1"})
+    public long tableFileId;
+
+    /** The number of rows to read per call. */
+    @Param({"1000"})
+    public long rows;
+
+    private TablePrx table;
+
+    private long[] columns;
+
+    private long stop;
+
+    /**
+     * Opens the table.
+     *
+     * @param conn
+     *            The connection.
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @Setup
+    public void setUp(Connection conn) throws Exception {
+        table = conn.gw.getSharedResources(conn.ctx).openTable(
+                new OriginalFileI(tableFileId, false));
+        columns = new long[table.getHeaders().length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = i;
+        }
+        stop = Math.min(rows, table.getNumberOfRows());
+    }
+
+    /**
+     * Closes the table.
+     *
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        if (table != null) {
+            table.close();
+        }
+    }
+
+    @Benchmark
+    public Data read() throws Exception {
+        return table.read(columns, 0, stop);
+    }
+}
@@ -21,12 +21,21 @@
  */
 package training;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import Ice.AsyncResult;
 import omero.RLong;
 import omero.api.IPixelsPrx;
 import omero.api.RawPixelsStorePrx;
@@ -35,13 +44,17 @@ import omero.gateway.facility.BrowseFacility;
 import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
 import omero.log.SimpleLogger;
+import omero.model.Channel;
 import omero.model.DatasetI;
 import omero.model.DatasetImageLink;
 import omero.model.DatasetImageLinkI;
 import omero.model.IObject;
 import omero.model.ImageI;
 import omero.model.LengthI;
+import omero.model.Pixels;
 import omero.model.PixelsType;
+import omero.model.StatsInfo;
+import omero.model.StatsInfoI;
 import ome.model.enums.UnitsLength;
 import omero.gateway.model.ExperimenterData;
 import omero.gateway.model.ImageData;
@@ -213,6 +226,333 @@ public class CreateImage
         }
     }
 
+// Write tiles in parallel
+// =======================
+
+    /**
+     * Computes the content of a tile.
+     */
+    private interface TileProcessor
+    {
+
+        /**
+         * Returns the bytes of the tile. Invoked from several threads.
+         * @param z The z-section.
+         * @param c The channel.
+         * @param t The timepoint.
+         * @param x The x-coordinate of the tile.
+         * @param y The y-coordinate of the tile.
+         * @param w The width of the tile.
+         * @param h The height of the tile.
+         * @return See above.
+         */
+        byte[] process(int z, int c, int t, int x, int y, int w, int h)
+                throws Exception;
+    }
+
+    /** A tile being computed or written.*/
+    private static class Tile
+    {
+
+        /** The position of the tile.*/
+        int z, c, t, x, y, w, h;
+
+        /** The size of the tile in bytes.*/
+        long bytes;
+
+        /** The content of the tile, once computed.*/
+        Future<byte[]> data;
+
+        /** The write request, once sent.*/
+        AsyncResult write;
+    }
+
+    /**
+     * Writes all the tiles of a pixels set. The tiles are computed on a
+     * pool of threads and several writes may be in flight at once.
+     * The writes are sent in the order of the tiles, but the server may
+     * apply concurrent requests in any order. If the store requires a
+     * pyramid, the tiles must be written in sequence so only one write is
+     * in flight at a time, the next tiles still being computed meanwhile.
+     * The bytes of the tiles being computed or written never exceed the
+     * budget, apart from a single tile larger than the budget.
+     * @param store The store, already initialized with the pixels set.
+     * @param processor Computes the content of the tiles.
+     * @param parallelism The number of threads computing tiles.
+     * @param writes The maximum number of writes in flight when the store
+     *               does not require a pyramid.
+     * @param budget The maximum number of bytes in memory.
+     */
+    private void writeTiles(final RawPixelsStorePrx store,
+            final TileProcessor processor, int parallelism, int writes,
+            long budget)
+            throws Exception
+    {
+        int sizeX = store.getRowSize()/store.getByteWidth();
+        int sizeY = (int) (store.getPlaneSize()/store.getRowSize());
+        int sizeZ = (int) (store.getStackSize()/store.getPlaneSize());
+        int sizeC = (int) (store.getTimepointSize()/store.getStackSize());
+        int sizeT = (int) (store.getTotalSize()/store.getTimepointSize());
+        int bytesPerPixel = store.getByteWidth();
+        int[] tileSize = store.getTileSize();
+        // The pyramid is built from the tiles in the order they are written.
+        if (store.requiresPixelsPyramid()) writes = 1;
+        Deque<Tile> computing = new ArrayDeque<Tile>();
+        Deque<Tile> writing = new ArrayDeque<Tile>();
+        long used = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (int t = 0; t < sizeT; t++) {
+                for (int c = 0; c < sizeC; c++) {
+                    for (int z = 0; z < sizeZ; z++) {
+                        for (int y = 0; y < sizeY; y += tileSize[1]) {
+                            for (int x = 0; x < sizeX; x += tileSize[0]) {
+                                final Tile tile = new Tile();
+                                tile.z = z;
+                                tile.c = c;
+                                tile.t = t;
+                                tile.x = x;
+                                tile.y = y;
+                                tile.w = Math.min(tileSize[0], sizeX - x);
+                                tile.h = Math.min(tileSize[1], sizeY - y);
+                                tile.bytes = (long) tile.w*tile.h*bytesPerPixel;
+                                while (used + tile.bytes > budget
+                                        || computing.size() >= 2*parallelism) {
+                                    if (computing.isEmpty() && writing.isEmpty())
+                                        break;
+                                    used -= advance(store, computing, writing,
+                                            writes);
+                                }
+                                used += tile.bytes;
+                                tile.data = executor.submit(
+                                        new Callable<byte[]>() {
+                                    public byte[] call() throws Exception {
+                                        return processor.process(tile.z,
+                                                tile.c, tile.t, tile.x, tile.y,
+                                                tile.w, tile.h);
+                                    }
+                                });
+                                computing.add(tile);
+                            }
+                        }
+                    }
+                }
+            }
+            while (!computing.isEmpty() || !writing.isEmpty()) {
+                advance(store, computing, writing, writes);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Either sends the oldest computed tile or waits for the oldest write
+     * to complete, if the maximum number of writes is reached or no tile
+     * is being computed.
+     * @param store The store to write to.
+     * @param computing The tiles being computed, in order.
+     * @param writing The tiles being written, in order.
+     * @param writes The maximum number of writes in flight.
+     * @return The number of bytes released.
+     */
+    private long advance(RawPixelsStorePrx store, Deque<Tile> computing,
+            Deque<Tile> writing, int writes)
+            throws Exception
+    {
+        if (!writing.isEmpty()
+                && (computing.isEmpty() || writing.size() >= writes)) {
+            Tile tile = writing.poll();
+            store.end_setTile(tile.write);
+            return tile.bytes;
+        }
+        Tile tile = computing.poll();
+        tile.write = store.begin_setTile(tile.data.get(), tile.z, tile.c,
+                tile.t, tile.x, tile.y, tile.w, tile.h);
+        tile.data = null;
+        writing.add(tile);
+        return 0;
+    }
+
+    /**
+     * Records the minimum and maximum value of each channel while the tiles
+     * are computed, so that they do not need to be read again.
+     */
+    private static class MinMaxTileProcessor
+        implements TileProcessor
+    {
+
+        /** Computes the content of the tiles.*/
+        private final TileProcessor processor;
+
+        /** The pixels type e.g. uint8.*/
+        private final String type;
+
+        /** The minimum and maximum value of each channel.*/
+        private final double[] min, max;
+
+        /**
+         * Creates a new instance.
+         * @param processor Computes the content of the tiles.
+         * @param type The pixels type e.g. {@link PixelsData#UINT8_TYPE}.
+         * @param sizeC The number of channels.
+         */
+        MinMaxTileProcessor(TileProcessor processor, String type, int sizeC)
+        {
+            this.processor = processor;
+            this.type = type;
+            min = new double[sizeC];
+            max = new double[sizeC];
+            Arrays.fill(min, Double.MAX_VALUE);
+            Arrays.fill(max, -Double.MAX_VALUE);
+        }
+
+        public byte[] process(int z, int c, int t, int x, int y, int w, int h)
+                throws Exception
+        {
+            byte[] tile = processor.process(z, c, t, x, y, w, h);
+            double[] range = minMax(tile, type);
+            synchronized (this) {
+                min[c] = Math.min(min[c], range[0]);
+                max[c] = Math.max(max[c], range[1]);
+            }
+            return tile;
+        }
+
+        /**
+         * Returns the minimum and maximum value of the tile.
+         * The bytes are big-endian.
+         * @param tile The bytes of the tile.
+         * @param type The pixels type.
+         * @return See above.
+         */
+        private static double[] minMax(byte[] tile, String type)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(tile);
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            double v;
+            if (PixelsData.INT8_TYPE.equals(type)
+                    || PixelsData.UINT8_TYPE.equals(type)) {
+                boolean unsigned = PixelsData.UINT8_TYPE.equals(type);
+                for (byte b : tile) {
+                    v = unsigned ? b & 0xff : b;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            } else if (PixelsData.INT16_TYPE.equals(type)
+                    || PixelsData.UINT16_TYPE.equals(type)) {
+                boolean unsigned = PixelsData.UINT16_TYPE.equals(type);
+                for (int i = 0; i + 1 < tile.length; i += 2) {
+                    short s = buffer.getShort(i);
+                    v = unsigned ? s & 0xffff : s;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            } else if (PixelsData.INT32_TYPE.equals(type)
+                    || PixelsData.UINT32_TYPE.equals(type)) {
+                boolean unsigned = PixelsData.UINT32_TYPE.equals(type);
+                for (int i = 0; i + 3 < tile.length; i += 4) {
+                    int n = buffer.getInt(i);
+                    v = unsigned ? n & 0xffffffffL : n;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            } else if (PixelsData.FLOAT_TYPE.equals(type)) {
+                for (int i = 0; i + 3 < tile.length; i += 4) {
+                    v = buffer.getFloat(i);
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            } else if (PixelsData.DOUBLE_TYPE.equals(type)) {
+                for (int i = 0; i + 7 < tile.length; i += 8) {
+                    v = buffer.getDouble(i);
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            } else {
+                throw new IllegalArgumentException(
+                        "Pixels type not supported: "+type);
+            }
+            return new double[] {min, max};
+        }
+
+        /**
+         * Saves the minimum and maximum values as the statistics of the
+         * channels of the pixels set.
+         * @param gateway The gateway.
+         * @param ctx The security context.
+         * @param pixelsId The id of the pixels set.
+         */
+        synchronized void save(Gateway gateway, SecurityContext ctx,
+                long pixelsId)
+                throws Exception
+        {
+            Pixels pixels = gateway.getPixelsService(ctx)
+                    .retrievePixDescription(pixelsId);
+            List<IObject> channels = new ArrayList<IObject>();
+            for (int c = 0; c < min.length; c++) {
+                Channel channel = pixels.getChannel(c);
+                StatsInfo stats = channel.getStatsInfo();
+                if (stats == null) stats = new StatsInfoI();
+                stats.setGlobalMin(omero.rtypes.rdouble(min[c]));
+                stats.setGlobalMax(omero.rtypes.rdouble(max[c]));
+                channel.setStatsInfo(stats);
+                channels.add(channel);
+            }
+            gateway.getUpdateService(ctx).saveArray(channels);
+        }
+    }
+
+    /**
+     * Creates a new single channel image and fills it with a gradient,
+     * the tiles being computed on 4 threads. The minimum and maximum of the
+     * channel are computed from the tiles as they are written.
+     * @param datasetID The dataset's id to link the new image to.
+     */
+    private void createImageInTiles(long datasetID)
+            throws Exception
+    {
+        int sizeX = 2048;
+        int sizeY = 2048;
+        PixelsType type = (PixelsType) gateway.getQueryService(ctx).findByQuery(
+                "from PixelsType as p where p.value = 'uint8'", null);
+        IPixelsPrx proxy = gateway.getPixelsService(ctx);
+        RLong idNew = proxy.createImage(sizeX, sizeY, 1, 1, Arrays.asList(0),
+                type, "gradient", "Written in tiles");
+        if (idNew == null)
+            throw new Exception("New image could not be created.");
+        ImageData newImage = loadImage(idNew.getValue());
+        DatasetImageLink link = new DatasetImageLinkI();
+        link.setParent(new DatasetI(datasetID, false));
+        link.setChild(new ImageI(newImage.getId(), false));
+        gateway.getUpdateService(ctx).saveAndReturnObject(link);
+        RawPixelsStorePrx store = null;
+        try {
+            store = gateway.getPixelsStore(ctx);
+            store.setPixelsId(newImage.getDefaultPixels().getId(), false);
+            MinMaxTileProcessor processor = new MinMaxTileProcessor(
+                    new TileProcessor() {
+                public byte[] process(int z, int c, int t, int x, int y,
+                        int w, int h) {
+                    byte[] tile = new byte[w*h];
+                    for (int j = 0; j < h; j++)
+                        for (int i = 0; i < w; i++)
+                            tile[j*w + i] = (byte) (x + i + y + j);
+                    return tile;
+                }
+            }, PixelsData.UINT8_TYPE, 1);
+            // 64MB
+            writeTiles(store, processor, 4, 8, 64*1024*1024);
+            store.save();
+            processor.save(gateway, ctx, newImage.getDefaultPixels().getId());
+        } catch (Exception e) {
+            throw new Exception("Cannot write the tiles", e);
+        } finally {
+            if (store != null) store.close();
+        }
+    }
+
     /**
      * end-code
      */
@@ -235,6 +575,7 @@ public class CreateImage
 
             image = loadImage(imageId);
             CreateNewImage(datasetId);
+            createImageInTiles(datasetId);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -21,7 +21,33 @@
  */
 package training;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import omero.RLong;
+import omero.RType;
+import omero.ServerError;
+import omero.cmd.CmdCallbackI;
+import omero.cmd.Delete2;
+import omero.cmd.ERR;
+import omero.cmd.Request;
 import omero.cmd.Response;
+import omero.cmd.Status;
 import omero.gateway.Gateway;
 import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
@@ -38,6 +64,7 @@ import omero.model.ImageI;
 import omero.model.OriginalFile;
 import omero.model.OriginalFileI;
 import omero.model.enums.ChecksumAlgorithmSHA1160;
+import omero.sys.ParametersI;
 import omero.gateway.model.ExperimenterData;
 
 /**
@@ -65,6 +92,10 @@ public class DeleteData
 
     private SecurityContext ctx;
 
+    /** Polls the commands whose notification may have been missed.*/
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor();
+
     /**
      * start-code
      */
@@ -107,6 +138,337 @@ public class DeleteData
         System.err.println(rsp);
     }
 
+// Delete asynchronously
+// =====================
+
+    /**
+     * Notified of the progress of a command.
+     */
+    private interface ProgressListener
+    {
+
+        /**
+         * Invoked each time the server completes a step of the command.
+         * @param complete The number of steps completed.
+         * @param total The total number of steps.
+         */
+        void onStep(int complete, int total);
+    }
+
+    /**
+     * Completes a future when the server notifies that the command has
+     * finished. The handle is only polled as a fallback in case the
+     * notification is lost e.g. the connection dropped.
+     * The progress is passed to the listener as the server reports it.
+     */
+    private static class FutureCallback extends CmdCallbackI
+    {
+
+        /**
+         * Completed with the response. Not initialized in the declaration
+         * since the server may notify before the constructor returns.
+         */
+        private CompletableFuture<Response> future;
+
+        /**
+         * Notified of the progress, <code>null</code> if none. The steps
+         * reported before the constructor returns are not passed on.
+         */
+        private volatile ProgressListener listener;
+
+        /**
+         * Takes over the handle of the given callback.
+         * @param cb The callback returned when submitting the request.
+         * @param listener Notified of the progress, may be
+         *                 <code>null</code>.
+         */
+        FutureCallback(CmdCallbackI cb, ProgressListener listener)
+                throws ServerError
+        {
+            super(cb);
+            this.listener = listener;
+        }
+
+        /**
+         * Returns the future completed when the command finishes.
+         * @return See above.
+         */
+        synchronized CompletableFuture<Response> getFuture()
+        {
+            if (future == null) future = new CompletableFuture<Response>();
+            return future;
+        }
+
+        @Override
+        public void step(int complete, int total, Ice.Current current)
+        {
+            super.step(complete, total, current);
+            ProgressListener l = listener;
+            if (l != null) l.onStep(complete, total);
+        }
+
+        @Override
+        public void onFinished(Response rsp, Status status,
+                Ice.Current current)
+        {
+            super.onFinished(rsp, status, current);
+            getFuture().complete(rsp);
+            close(true);
+        }
+
+        @Override
+        public void close(boolean closeHandle)
+        {
+            super.close(closeHandle);
+            // No notification will come once closed.
+            getFuture().completeExceptionally(
+                    new IllegalStateException("Callback closed"));
+        }
+    }
+
+    /**
+     * Submits the request and returns a future completed with the response.
+     * No thread waits for the command to finish. The handle is polled every
+     * few seconds in case the notification is missed, and the future fails
+     * with a {@link TimeoutException} if the command has not finished in
+     * time.
+     * @param request The request e.g. Delete2, Chgrp2, Duplicate.
+     * @param timeout The maximum time to wait in milliseconds.
+     * @param listener Notified of the progress, may be <code>null</code>.
+     * @return See above.
+     */
+    private CompletableFuture<Response> submit(Request request,
+            final long timeout, ProgressListener listener)
+            throws Exception
+    {
+        CmdCallbackI cb = gateway.submit(ctx, request);
+        final FutureCallback fcb = new FutureCallback(cb, listener);
+        cb.close(false);
+        final CompletableFuture<Response> future = fcb.getFuture();
+        final long deadline = System.currentTimeMillis()+timeout;
+        final ScheduledFuture<?> poll = scheduler.scheduleWithFixedDelay(
+                new Runnable() {
+            public void run() {
+                try {
+                    if (System.currentTimeMillis() < deadline) {
+                        fcb.poll();
+                        return;
+                    }
+                    future.completeExceptionally(new TimeoutException(
+                            "No response after "+timeout+"ms"));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+                fcb.close(true);
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+        future.whenComplete(new BiConsumer<Response, Throwable>() {
+            public void accept(Response rsp, Throwable t) {
+                poll.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Delete Images asynchronously.
+     * In the following example, we create two images and delete them.
+     */
+    private void deleteImagesAsync()
+            throws Exception
+    {
+        DataManagerFacility dm = gateway.getFacility(DataManagerFacility.class);
+        Image img1 = new ImageI();
+        img1.setName(omero.rtypes.rstring("image1"));
+        img1 = (Image) dm.saveAndReturnObject(ctx, img1);
+        Image img2 = new ImageI();
+        img2.setName(omero.rtypes.rstring("image2"));
+        img2 = (Image) dm.saveAndReturnObject(ctx, img2);
+        Delete2 delete = new Delete2();
+        Map<String, List<Long>> targets = new HashMap<String, List<Long>>();
+        targets.put("Image", Arrays.asList(img1.getId().getValue(),
+                img2.getId().getValue()));
+        delete.targetObjects = targets;
+        CompletableFuture<Response> future = submit(delete, 60000,
+                new ProgressListener() {
+            public void onStep(int complete, int total) {
+                System.err.println("Step "+complete+"/"+total);
+            }
+        });
+        // Do something else, then wait for the result.
+        Response rsp = future.get();
+        if (rsp instanceof ERR)
+            System.err.println("Delete failed: "+rsp);
+        else
+            System.err.println(rsp);
+    }
+
+// Delete many Images
+// ==================
+
+    /**
+     * Creates the request acting on some images e.g. Delete2 or Chgrp2.
+     */
+    private interface RequestFactory
+    {
+
+        /**
+         * Returns the request for the given images.
+         * @param imageIds The ids of the images.
+         * @return See above.
+         */
+        Request create(List<Long> imageIds);
+    }
+
+    /**
+     * Splits the images in groups that can be processed independently:
+     * the images of a fileset must be processed together, the other ones
+     * are grouped in batches.
+     * @param imageIds The ids of the images.
+     * @param batchSize The number of images without fileset per group.
+     * @return See above.
+     */
+    private List<List<Long>> partition(Collection<Long> imageIds,
+            int batchSize)
+            throws Exception
+    {
+        ParametersI param = new ParametersI();
+        param.addIds(imageIds);
+        List<List<RType>> rows = gateway.getQueryService(ctx).projection(
+                "select i.id, i.fileset.id from Image as i "
+                + "where i.id in (:ids)", param);
+        Map<Long, List<Long>> filesets = new LinkedHashMap<Long, List<Long>>();
+        List<List<Long>> groups = new ArrayList<List<Long>>();
+        List<Long> batch = new ArrayList<Long>();
+        for (List<RType> row : rows) {
+            long imageId = ((RLong) row.get(0)).getValue();
+            RLong filesetId = (RLong) row.get(1);
+            if (filesetId == null) {
+                batch.add(imageId);
+                if (batch.size() == batchSize) {
+                    groups.add(batch);
+                    batch = new ArrayList<Long>();
+                }
+                continue;
+            }
+            List<Long> l = filesets.get(filesetId.getValue());
+            if (l == null) {
+                l = new ArrayList<Long>();
+                filesets.put(filesetId.getValue(), l);
+            }
+            l.add(imageId);
+        }
+        if (!batch.isEmpty()) groups.add(batch);
+        groups.addAll(filesets.values());
+        return groups;
+    }
+
+    /**
+     * Returns an error response.
+     * @param name The name of the error.
+     * @param message The description of the error.
+     * @return See above.
+     */
+    private static ERR error(String name, String message)
+    {
+        ERR err = new ERR();
+        err.category = "training";
+        err.name = name;
+        err.parameters = new HashMap<String, String>();
+        err.parameters.put("message", message);
+        return err;
+    }
+
+    /**
+     * Processes the images in independent groups, several groups at once.
+     * A failure only affects the images of its group. Each request is
+     * given ten minutes, so a request that never finishes only holds its
+     * slot until then. The images that could not be found are reported
+     * with an error.
+     * @param imageIds The ids of the images.
+     * @param factory Creates the request for each group.
+     * @param workers The maximum number of requests running at once.
+     * @return The response for each image.
+     */
+    private Map<Long, Response> processInGroups(Collection<Long> imageIds,
+            RequestFactory factory, int workers)
+            throws Exception
+    {
+        long timeout = 10*60*1000;
+        final Semaphore running = new Semaphore(workers);
+        Map<List<Long>, CompletableFuture<Response>> futures =
+                new LinkedHashMap<List<Long>, CompletableFuture<Response>>();
+        for (List<Long> group : partition(imageIds, 100)) {
+            // The slots are released at the latest when the requests time out.
+            if (!running.tryAcquire(2*timeout, TimeUnit.MILLISECONDS))
+                throw new TimeoutException("No request slot available");
+            CompletableFuture<Response> future;
+            try {
+                future = submit(factory.create(group), timeout, null);
+            } catch (Exception e) {
+                running.release();
+                throw e;
+            }
+            future.whenComplete(new BiConsumer<Response, Throwable>() {
+                public void accept(Response rsp, Throwable t) {
+                    running.release();
+                }
+            });
+            futures.put(group, future);
+        }
+        Map<Long, Response> results = new LinkedHashMap<Long, Response>();
+        for (Entry<List<Long>, CompletableFuture<Response>> e :
+            futures.entrySet()) {
+            Response rsp;
+            try {
+                rsp = e.getValue().get();
+            } catch (ExecutionException ex) {
+                rsp = error(ex.getCause().getClass().getSimpleName(),
+                        String.valueOf(ex.getCause().getMessage()));
+            }
+            for (Long id : e.getKey()) {
+                results.put(id, rsp);
+            }
+        }
+        for (Long id : imageIds) {
+            if (!results.containsKey(id))
+                results.put(id, error("ImageNotFound", "Image:"+id));
+        }
+        return results;
+    }
+
+    /**
+     * Delete many Images, two groups at a time.
+     */
+    private void deleteManyImages()
+            throws Exception
+    {
+        DataManagerFacility dm = gateway.getFacility(DataManagerFacility.class);
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 10; i++) {
+            Image img = new ImageI();
+            img.setName(omero.rtypes.rstring("image"+i));
+            img = (Image) dm.saveAndReturnObject(ctx, img);
+            ids.add(img.getId().getValue());
+        }
+        Map<Long, Response> results = processInGroups(ids,
+                new RequestFactory() {
+            public Request create(List<Long> imageIds) {
+                Delete2 delete = new Delete2();
+                Map<String, List<Long>> targets =
+                        new HashMap<String, List<Long>>();
+                targets.put("Image", imageIds);
+                delete.targetObjects = targets;
+                return delete;
+            }
+        }, 2);
+        int errors = 0;
+        for (Response rsp : results.values()) {
+            if (rsp instanceof ERR) errors++;
+        }
+        System.err.println("Images: "+results.size()+" failed: "+errors);
+    }
+
 // Delete Annotation
 // =================
 
@@ -150,10 +512,13 @@ public class DeleteData
             ctx = new SecurityContext(user.getGroupId());
 
             deleteImage();
+            deleteImagesAsync();
+            deleteManyImages();
             deleteFileAnnotation();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            scheduler.shutdownNow();
             try {
                 gateway.disconnect(); // Be sure to disconnect
             } catch (Exception e) {
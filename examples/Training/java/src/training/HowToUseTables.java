@@ -21,8 +21,14 @@
  */
 package training;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
+import Ice.AsyncResult;
 import omero.gateway.Gateway;
 import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
@@ -34,6 +40,14 @@ import omero.gateway.model.FileAnnotationData;
 import omero.gateway.model.ImageData;
 import omero.gateway.model.TableData;
 import omero.gateway.model.TableDataColumn;
+import omero.grid.Column;
+import omero.grid.Data;
+import omero.grid.DoubleColumn;
+import omero.grid.LongColumn;
+import omero.grid.SharedResourcesPrx;
+import omero.grid.StringColumn;
+import omero.grid.TablePrx;
+import omero.model.OriginalFileI;
 
 /** 
  * Follow samples code indicating how to use OMERO.tables
@@ -124,6 +138,382 @@ public class HowToUseTables
         }
     }
 
+// Read table in chunks
+// ====================
+
+    /**
+     * Notified for each chunk of rows read from a table.
+     */
+    private interface ChunkHandler
+    {
+
+        /**
+         * Invoked with the requested columns of a chunk of rows.
+         * The values are primitive arrays e.g.
+         * {@link LongColumn#values}, {@link DoubleColumn#values}.
+         * @param start The index of the first row of the chunk.
+         * @param columns The columns.
+         */
+        void handle(long start, Column[] columns) throws Exception;
+    }
+
+    /**
+     * Reads the given columns of a table chunk by chunk.
+     * The next chunk is requested before the current one is handled
+     * so that reading overlaps with processing.
+     * Only two chunks are held in memory at any time.
+     * @param fileId The id of the original file of the table.
+     * @param columns The indexes of the columns to read.
+     * @param chunkSize The number of rows per chunk.
+     * @param handler The handler notified for each chunk.
+     */
+    private void readTable(long fileId, long[] columns, long chunkSize,
+            ChunkHandler handler)
+            throws Exception
+    {
+        TablePrx table = gateway.getSharedResources(ctx).openTable(
+                new OriginalFileI(fileId, false));
+        try {
+            long rows = table.getNumberOfRows();
+            AsyncResult next = null;
+            if (rows > 0)
+                next = table.begin_read(columns, 0, Math.min(chunkSize, rows));
+            for (long start = 0; start < rows; start += chunkSize) {
+                Data data = table.end_read(next);
+                long end = start + chunkSize;
+                if (end < rows)
+                    next = table.begin_read(columns, end,
+                            Math.min(end + chunkSize, rows));
+                handler.handle(start, data.columns);
+            }
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * Reads the table linked to the image two rows at a time and sums
+     * the values of the "Value" column.
+     * @throws Exception
+     */
+    private void readTableInChunks()
+            throws Exception
+    {
+        TablesFacility fac = gateway.getFacility(TablesFacility.class);
+        Collection<FileAnnotationData> tables = fac.getAvailableTables(ctx, image);
+        long fileId  = tables.iterator().next().getFileID();
+        final double[] sum = new double[1];
+        readTable(fileId, new long[] {0, 2}, 2, new ChunkHandler() {
+            public void handle(long start, Column[] columns) {
+                long[] ids = ((LongColumn) columns[0]).values;
+                double[] values = ((DoubleColumn) columns[1]).values;
+                for (int i = 0; i < values.length; i++)
+                    sum[0] += values[i];
+                System.out.println("Rows "+start+"-"+(start+ids.length-1));
+            }
+        });
+        System.out.println("Sum: "+sum[0]);
+    }
+
+// Index a table column
+// ====================
+
+    /**
+     * Maps the values of a long column, e.g. image, ROI or well ids, to the
+     * rows holding them. The index is built by reading the column once;
+     * lookups are then answered without scanning the table.
+     * The index must be rebuilt if rows are added to the table.
+     */
+    private static class ColumnIndex
+    {
+
+        /** The row numbers keyed by value.*/
+        private final TreeMap<Long, List<Long>> rows =
+                new TreeMap<Long, List<Long>>();
+
+        /**
+         * Indexes a row.
+         * @param value The value of the indexed column.
+         * @param row The row number.
+         */
+        void add(long value, long row)
+        {
+            List<Long> l = rows.get(value);
+            if (l == null) {
+                l = new ArrayList<Long>(1);
+                rows.put(value, l);
+            }
+            l.add(row);
+        }
+
+        /**
+         * Returns the rows holding any of the given values.
+         * @param values The values to look up.
+         * @return See above.
+         */
+        long[] find(Collection<Long> values)
+        {
+            List<Long> found = new ArrayList<Long>();
+            List<Long> l;
+            for (Long value : values) {
+                l = rows.get(value);
+                if (l != null) found.addAll(l);
+            }
+            return toArray(found);
+        }
+
+        /**
+         * Returns the rows holding a value in the given range.
+         * @param from The lowest value, inclusive.
+         * @param to The highest value, inclusive.
+         * @return See above.
+         */
+        long[] findRange(long from, long to)
+        {
+            List<Long> found = new ArrayList<Long>();
+            NavigableMap<Long, List<Long>> range = rows.subMap(from, true, to,
+                    true);
+            for (List<Long> l : range.values())
+                found.addAll(l);
+            return toArray(found);
+        }
+
+        /**
+         * Converts the row numbers, sorted in ascending order.
+         * @param l The row numbers.
+         * @return See above.
+         */
+        private static long[] toArray(List<Long> l)
+        {
+            long[] array = new long[l.size()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = l.get(i);
+            Arrays.sort(array);
+            return array;
+        }
+    }
+
+    /**
+     * Indexes the given long column of a table.
+     * @param fileId The id of the original file of the table.
+     * @param column The index of the column.
+     * @return See above.
+     */
+    private ColumnIndex indexColumn(long fileId, long column)
+            throws Exception
+    {
+        final ColumnIndex index = new ColumnIndex();
+        readTable(fileId, new long[] {column}, 10000, new ChunkHandler() {
+            public void handle(long start, Column[] columns) {
+                long[] values = ((LongColumn) columns[0]).values;
+                for (int i = 0; i < values.length; i++)
+                    index.add(values[i], start + i);
+            }
+        });
+        return index;
+    }
+
+    /**
+     * Looks up several rows of the table linked to the image by ID,
+     * reading all of them with a single call.
+     * @throws Exception
+     */
+    private void findRowsWithIndex()
+            throws Exception
+    {
+        TablesFacility fac = gateway.getFacility(TablesFacility.class);
+        Collection<FileAnnotationData> tables = fac.getAvailableTables(ctx, image);
+        long fileId  = tables.iterator().next().getFileID();
+        ColumnIndex index = indexColumn(fileId, 0);
+        long[] rows = index.find(Arrays.asList(2L, 4L));
+        if (rows.length == 0) return;
+        TablePrx table = gateway.getSharedResources(ctx).openTable(
+                new OriginalFileI(fileId, false));
+        try {
+            Data data = table.readCoordinates(rows);
+            double[] values = ((DoubleColumn) data.columns[2]).values;
+            System.out.println("Values: "+Arrays.toString(values));
+        } finally {
+            table.close();
+        }
+    }
+
+// Write table in batches
+// ======================
+
+    /**
+     * Writes rows to a table in batches of a given size, without holding
+     * all of them in memory. A full batch is sent asynchronously while
+     * the next one is being filled. At most one batch is in flight, so the
+     * rows are added in order. When a batch is full and the previous one
+     * has not been written yet, {@link #addRow(Object...)} waits. The total
+     * time spent waiting is available from {@link #getWaitTime()}.
+     * Only long, double and string columns are supported.
+     */
+    private static class TableWriter
+    {
+
+        /** The table to write to, already initialized.*/
+        private final TablePrx table;
+
+        /** The columns of the table.*/
+        private final Column[] headers;
+
+        /** The values of the current batch, one array per column.*/
+        private final Object[] buffers;
+
+        /** The number of rows per batch.*/
+        private final int batchSize;
+
+        /** The number of rows in the current batch.*/
+        private int count;
+
+        /** The batch being written, <code>null</code> if none.*/
+        private AsyncResult pending;
+
+        /** The time spent waiting for a batch to be written.*/
+        private long waitTime;
+
+        /**
+         * Creates a new writer.
+         * @param table The table, already initialized with the headers.
+         * @param headers The columns of the table.
+         * @param batchSize The number of rows per batch.
+         */
+        TableWriter(TablePrx table, Column[] headers, int batchSize)
+        {
+            this.table = table;
+            this.headers = headers;
+            this.batchSize = batchSize;
+            buffers = new Object[headers.length];
+            for (int i = 0; i < headers.length; i++) {
+                if (headers[i] instanceof LongColumn)
+                    buffers[i] = new long[batchSize];
+                else if (headers[i] instanceof DoubleColumn)
+                    buffers[i] = new double[batchSize];
+                else if (headers[i] instanceof StringColumn)
+                    buffers[i] = new String[batchSize];
+                else
+                    throw new IllegalArgumentException(
+                            "Column type not supported: "+headers[i].name);
+            }
+        }
+
+        /**
+         * Adds a row, sending the batch if it is full.
+         * @param values The values, one per column.
+         */
+        void addRow(Object... values)
+                throws Exception
+        {
+            for (int i = 0; i < headers.length; i++) {
+                if (buffers[i] instanceof long[])
+                    ((long[]) buffers[i])[count] = (Long) values[i];
+                else if (buffers[i] instanceof double[])
+                    ((double[]) buffers[i])[count] = (Double) values[i];
+                else
+                    ((String[]) buffers[i])[count] = (String) values[i];
+            }
+            if (++count == batchSize) flush();
+        }
+
+        /**
+         * Sends the current batch once the previous one has been written.
+         * The values are marshalled when the request is sent so the buffers
+         * are reused straight away for the next batch. Only the last batch,
+         * if partial, is copied.
+         */
+        void flush()
+                throws Exception
+        {
+            if (count == 0) return;
+            boolean full = count == batchSize;
+            Column[] columns = new Column[headers.length];
+            Column h;
+            for (int i = 0; i < headers.length; i++) {
+                h = headers[i];
+                if (h instanceof LongColumn)
+                    columns[i] = new LongColumn(h.name, h.description,
+                            full ? (long[]) buffers[i] :
+                                Arrays.copyOf((long[]) buffers[i], count));
+                else if (h instanceof DoubleColumn)
+                    columns[i] = new DoubleColumn(h.name, h.description,
+                            full ? (double[]) buffers[i] :
+                                Arrays.copyOf((double[]) buffers[i], count));
+                else
+                    columns[i] = new StringColumn(h.name, h.description,
+                            ((StringColumn) h).size,
+                            full ? (String[]) buffers[i] :
+                                Arrays.copyOf((String[]) buffers[i], count));
+            }
+            count = 0;
+            waitForPending();
+            pending = table.begin_addData(columns);
+        }
+
+        /**
+         * Sends the remaining rows and waits until all are written.
+         */
+        void close()
+                throws Exception
+        {
+            flush();
+            waitForPending();
+        }
+
+        /**
+         * Returns the time in milliseconds spent waiting for the server.
+         * @return See above.
+         */
+        long getWaitTime()
+        {
+            return waitTime;
+        }
+
+        /** Waits for the batch in flight, if any, to be written.*/
+        private void waitForPending()
+                throws Exception
+        {
+            if (pending == null) return;
+            long start = System.currentTimeMillis();
+            try {
+                table.end_addData(pending);
+            } finally {
+                pending = null;
+                waitTime += System.currentTimeMillis() - start;
+            }
+        }
+    }
+
+    /**
+     * Creates a table and writes rows to it in batches of 1000.
+     * @throws Exception
+     */
+    private void writeTableInBatches()
+            throws Exception
+    {
+        SharedResourcesPrx sr = gateway.getSharedResources(ctx);
+        long repositoryId = sr.repositories().descriptions.get(0).getId()
+                .getValue();
+        TablePrx table = sr.newTable(repositoryId, "Measurements.h5");
+        try {
+            Column[] headers = new Column[3];
+            headers[0] = new LongColumn("ID", "", null);
+            headers[1] = new StringColumn("Name", "", 64, null);
+            headers[2] = new DoubleColumn("Value", "", null);
+            table.initialize(headers);
+            TableWriter writer = new TableWriter(table, headers, 1000);
+            for (long i = 0; i < 10000; i++) {
+                writer.addRow(i, "row"+i, i*0.5);
+            }
+            writer.close();
+            System.out.println("Waited "+writer.getWaitTime()+"ms for "
+                    +table.getNumberOfRows()+" rows");
+        } finally {
+            table.close();
+        }
+    }
+
     /**
      * end-code
      */
@@ -143,6 +533,9 @@ public class HowToUseTables
             ctx = new SecurityContext(user.getGroupId());
             image = loadImage(imageId);
             createTableandLinkToImage();
+            readTableInChunks();
+            findRowsWithIndex();
+            writeTableInBatches();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
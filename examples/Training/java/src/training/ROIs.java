@@ -24,15 +24,37 @@ package training;
 
 
 import java.awt.Color;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import ome.formats.model.UnitsFactory;
+import Ice.AsyncResult;
+import omero.RLong;
+import omero.RType;
+import omero.api.IQueryPrx;
+import omero.api.IRoiPrx;
+import omero.api.IUpdatePrx;
 import omero.api.RawPixelsStorePrx;
+import omero.api.RoiOptions;
+import omero.api.RoiResult;
 import omero.gateway.Gateway;
 import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
@@ -43,10 +65,15 @@ import omero.gateway.model.ROIResult;
 import omero.log.SimpleLogger;
 import omero.model.AffineTransform;
 import omero.model.AffineTransformI;
+import omero.model.IObject;
+import omero.model.ImageI;
 import omero.model.LengthI;
+import omero.model.PolygonI;
 import omero.model.Roi;
+import omero.model.RoiI;
 
 import omero.model.Shape;
+import omero.sys.ParametersI;
 import omero.model.enums.UnitsLength;
 import omero.gateway.model.EllipseData;
 import omero.gateway.model.ExperimenterData;
@@ -316,6 +343,732 @@ public class ROIs
         System.out.println(r.getROIs().size());
     }
 
+// Save many ROIs
+// ==============
+
+    /**
+     * Saves one polygon ROI per array of coordinates. The ROIs are sent in
+     * batches, several batches being in flight at once, and only their
+     * ids are returned by the server.
+     * @param imageId The id of the image.
+     * @param polygons The polygons as x0, y0, x1, y1, ... arrays.
+     * @param z The z-section of the polygons.
+     * @param t The timepoint of the polygons.
+     * @param batchSize The number of ROIs saved per call.
+     * @return The ids of the ROIs, in the same order as the polygons.
+     */
+    private List<Long> savePolygons(long imageId, List<double[]> polygons,
+            int z, int t, int batchSize)
+            throws Exception
+    {
+        // maximum number of batches sent but not yet saved.
+        int window = 4;
+        IUpdatePrx svc = gateway.getUpdateService(ctx);
+        Deque<AsyncResult> pending = new ArrayDeque<AsyncResult>();
+        List<Long> ids = new ArrayList<Long>(polygons.size());
+        List<IObject> batch = new ArrayList<IObject>(batchSize);
+        StringBuilder points = new StringBuilder();
+        for (int i = 0; i < polygons.size(); i++) {
+            double[] coords = polygons.get(i);
+            points.setLength(0);
+            for (int j = 0; j + 1 < coords.length; j += 2) {
+                if (j > 0) points.append(' ');
+                points.append(coords[j]).append(',').append(coords[j+1]);
+            }
+            PolygonI polygon = new PolygonI();
+            polygon.setPoints(omero.rtypes.rstring(points.toString()));
+            polygon.setTheZ(omero.rtypes.rint(z));
+            polygon.setTheT(omero.rtypes.rint(t));
+            RoiI roi = new RoiI();
+            roi.setImage(new ImageI(imageId, false));
+            roi.addShape(polygon);
+            batch.add(roi);
+            if (batch.size() == batchSize || i == polygons.size() - 1) {
+                pending.add(svc.begin_saveAndReturnIds(batch));
+                batch = new ArrayList<IObject>(batchSize);
+                if (pending.size() >= window)
+                    ids.addAll(svc.end_saveAndReturnIds(pending.poll()));
+            }
+        }
+        while (!pending.isEmpty()) {
+            ids.addAll(svc.end_saveAndReturnIds(pending.poll()));
+        }
+        return ids;
+    }
+
+    /**
+     * Saves 1000 triangles in batches of 200.
+     */
+    private void saveManyROIs()
+            throws Exception
+    {
+        List<double[]> polygons = new ArrayList<double[]>();
+        for (int i = 0; i < 1000; i++) {
+            double x = (i % 40)*10;
+            double y = (i / 40)*10;
+            polygons.add(new double[] {x, y, x+8, y, x+4, y+8});
+        }
+        List<Long> ids = savePolygons(image.getId(), polygons, 0, 0, 200);
+        System.err.println("ROIs saved: "+ids.size());
+    }
+
+// Load ROIs page by page
+// ======================
+
+    /**
+     * Loads the ROIs of an image one page at a time, optionally
+     * restricted to a plane.
+     */
+    private class RoiCursor
+    {
+
+        /** The id of the image.*/
+        private final long imageId;
+
+        /** The plane or <code>-1</code> to load the ROIs of all planes.*/
+        private final int z, t;
+
+        /** The number of ROIs per page.*/
+        private final int pageSize;
+
+        /** The index of the first ROI of the next page.*/
+        private int offset;
+
+        /** Flag indicating that the last page has been loaded.*/
+        private boolean done;
+
+        /**
+         * Creates a new cursor.
+         * @param imageId The id of the image.
+         * @param z The z-section or <code>-1</code> for all planes.
+         * @param t The timepoint or <code>-1</code> for all planes.
+         * @param pageSize The number of ROIs per page.
+         */
+        RoiCursor(long imageId, int z, int t, int pageSize)
+        {
+            this.imageId = imageId;
+            this.z = z;
+            this.t = t;
+            this.pageSize = pageSize;
+        }
+
+        /**
+         * Returns <code>true</code> if there may be more ROIs to load.
+         * @return See above.
+         */
+        boolean hasNext()
+        {
+            return !done;
+        }
+
+        /**
+         * Loads the next page.
+         * @return See above.
+         */
+        List<ROIData> next()
+                throws Exception
+        {
+            IRoiPrx svc = gateway.getROIService(ctx);
+            RoiOptions options = new RoiOptions();
+            options.offset = omero.rtypes.rint(offset);
+            options.limit = omero.rtypes.rint(pageSize);
+            RoiResult r;
+            if (z < 0 || t < 0) r = svc.findByImage(imageId, options);
+            else r = svc.findByPlane(imageId, z, t, options);
+            List<ROIData> page = new ArrayList<ROIData>();
+            for (Roi roi : r.rois) {
+                page.add(new ROIData(roi));
+            }
+            offset += page.size();
+            done = page.size() < pageSize;
+            return page;
+        }
+    }
+
+    /**
+     * Loads the ids of the shapes on the given plane and the id of their
+     * ROI, without loading the shapes themselves.
+     * The shapes not attached to a plane are included.
+     * @param imageId The id of the image.
+     * @param z The z-section.
+     * @param t The timepoint.
+     * @param offset The index of the first shape to load.
+     * @param limit The maximum number of shapes to load.
+     * @return The shape id and ROI id of each shape.
+     */
+    private List<List<RType>> loadShapeIds(long imageId, int z, int t,
+            int offset, int limit)
+            throws Exception
+    {
+        ParametersI param = new ParametersI();
+        param.addId(imageId);
+        param.add("z", omero.rtypes.rint(z));
+        param.add("t", omero.rtypes.rint(t));
+        param.page(offset, limit);
+        IQueryPrx svc = gateway.getQueryService(ctx);
+        return svc.projection("select s.id, s.roi.id from Shape s "
+                + "where s.roi.image.id = :id "
+                + "and (s.theZ is null or s.theZ = :z) "
+                + "and (s.theT is null or s.theT = :t) order by s.id", param);
+    }
+
+    /**
+     * Loads the ROIs on the plane (0, 0) ten at a time.
+     */
+    private void loadROIsByPage()
+            throws Exception
+    {
+        List<List<RType>> ids = loadShapeIds(image.getId(), 0, 0, 0, 100);
+        for (List<RType> row : ids) {
+            System.err.println("Shape:"+((RLong) row.get(0)).getValue()
+                    +" ROI:"+((RLong) row.get(1)).getValue());
+        }
+        RoiCursor cursor = new RoiCursor(image.getId(), 0, 0, 10);
+        while (cursor.hasNext()) {
+            List<ROIData> page = cursor.next();
+            System.err.println("ROIs loaded: "+page.size());
+        }
+    }
+
+// Find shapes in a region
+// =======================
+
+    /**
+     * Returns the bounding box of the shape or <code>null</code> if the
+     * shape type is not handled.
+     * @param shape The shape.
+     * @return See above.
+     */
+    private static Rectangle2D getBounds(ShapeData shape)
+    {
+        java.awt.Shape outline = toOutline(shape);
+        if (outline != null) return outline.getBounds2D();
+        if (shape instanceof LineData) {
+            LineData l = (LineData) shape;
+            return new Line2D.Double(l.getX1(), l.getY1(), l.getX2(),
+                    l.getY2()).getBounds2D();
+        } else if (shape instanceof PointData) {
+            PointData p = (PointData) shape;
+            return new Rectangle2D.Double(p.getX(), p.getY(), 0, 0);
+        } else if (shape instanceof PolylineData) {
+            Path2D.Double path = new Path2D.Double();
+            List<Point2D.Double> points = ((PolylineData) shape).getPoints();
+            if (points.isEmpty()) return null;
+            path.moveTo(points.get(0).x, points.get(0).y);
+            for (int i = 1; i < points.size(); i++)
+                path.lineTo(points.get(i).x, points.get(i).y);
+            return path.getBounds2D();
+        }
+        return null;
+    }
+
+    /**
+     * Indexes the bounding boxes of the shapes of an image on a regular
+     * grid, one grid per plane, to find the shapes in a region quickly.
+     * Shapes not attached to a plane are returned for all planes.
+     * The index must be updated when ROIs are saved or deleted.
+     */
+    private static class ShapeIndex
+    {
+
+        /** The size of a grid cell in pixels.*/
+        private final int cellSize;
+
+        /** The shapes in each cell, keyed by plane then by cell.*/
+        private final Map<List<Integer>, Map<Long, List<ShapeData>>> grids =
+                new HashMap<List<Integer>, Map<Long, List<ShapeData>>>();
+
+        /** The bounding box of each indexed shape keyed by id.*/
+        private final Map<Long, Rectangle2D> bounds =
+                new HashMap<Long, Rectangle2D>();
+
+        /** The plane each indexed shape was indexed on keyed by id.*/
+        private final Map<Long, List<Integer>> planes =
+                new HashMap<Long, List<Integer>>();
+
+        /**
+         * Creates a new index.
+         * @param cellSize The size of a grid cell in pixels.
+         */
+        ShapeIndex(int cellSize)
+        {
+            this.cellSize = cellSize;
+        }
+
+        /**
+         * Returns the key of a cell.
+         * @return See above.
+         */
+        private static long cell(int x, int y)
+        {
+            return ((long) x << 32) | (y & 0xffffffffL);
+        }
+
+        /**
+         * Returns the key of the plane of the shape.
+         * @return See above.
+         */
+        private static List<Integer> plane(ShapeData shape)
+        {
+            return Arrays.asList(Math.max(-1, shape.getZ()),
+                    Math.max(-1, shape.getT()));
+        }
+
+        /**
+         * Adds the shapes of the ROI to the index, replacing the previous
+         * version of the shapes if any.
+         * @param roi The ROI.
+         */
+        void add(ROIData roi)
+        {
+            Iterator<List<ShapeData>> i = roi.getIterator();
+            while (i.hasNext()) {
+                for (ShapeData shape : i.next()) {
+                    remove(shape.getId());
+                    Rectangle2D r = getBounds(shape);
+                    if (r == null) continue;
+                    List<Integer> plane = plane(shape);
+                    bounds.put(shape.getId(), r);
+                    planes.put(shape.getId(), plane);
+                    Map<Long, List<ShapeData>> grid = grids.get(plane);
+                    if (grid == null) {
+                        grid = new HashMap<Long, List<ShapeData>>();
+                        grids.put(plane, grid);
+                    }
+                    for (long key : cells(r)) {
+                        List<ShapeData> l = grid.get(key);
+                        if (l == null) {
+                            l = new ArrayList<ShapeData>();
+                            grid.put(key, l);
+                        }
+                        l.add(shape);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes the shapes of the ROI from the index.
+         * @param roi The ROI.
+         */
+        void remove(ROIData roi)
+        {
+            Iterator<List<ShapeData>> i = roi.getIterator();
+            while (i.hasNext()) {
+                for (ShapeData shape : i.next()) {
+                    remove(shape.getId());
+                }
+            }
+        }
+
+        /**
+         * Removes the shape from the index. The shape is removed from the
+         * plane it was indexed on, which may differ from its current plane
+         * if the shape has been moved since.
+         * @param id The id of the shape.
+         */
+        private void remove(long id)
+        {
+            Rectangle2D r = bounds.remove(id);
+            List<Integer> plane = planes.remove(id);
+            if (r == null || plane == null) return;
+            Map<Long, List<ShapeData>> grid = grids.get(plane);
+            if (grid == null) return;
+            for (long key : cells(r)) {
+                List<ShapeData> l = grid.get(key);
+                if (l == null) continue;
+                Iterator<ShapeData> j = l.iterator();
+                while (j.hasNext()) {
+                    if (j.next().getId() == id) j.remove();
+                }
+                if (l.isEmpty()) grid.remove(key);
+            }
+        }
+
+        /**
+         * Returns <code>true</code> if the rectangles overlap or touch.
+         * Unlike {@link Rectangle2D#intersects(Rectangle2D)}, this also
+         * matches boxes of zero width or height e.g. points and lines.
+         * @param r The bounding box of a shape.
+         * @param region The region.
+         * @return See above.
+         */
+        private static boolean overlaps(Rectangle2D r, Rectangle2D region)
+        {
+            return r.getMaxX() >= region.getMinX()
+                    && r.getMinX() <= region.getMaxX()
+                    && r.getMaxY() >= region.getMinY()
+                    && r.getMinY() <= region.getMaxY();
+        }
+
+        /**
+         * Returns the keys of the cells intersecting the rectangle.
+         * @param r The rectangle.
+         * @return See above.
+         */
+        private List<Long> cells(Rectangle2D r)
+        {
+            List<Long> keys = new ArrayList<Long>();
+            int x0 = (int) Math.floor(r.getMinX()/cellSize);
+            int y0 = (int) Math.floor(r.getMinY()/cellSize);
+            int x1 = (int) Math.floor(r.getMaxX()/cellSize);
+            int y1 = (int) Math.floor(r.getMaxY()/cellSize);
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    keys.add(cell(x, y));
+                }
+            }
+            return keys;
+        }
+
+        /**
+         * Returns the shapes whose bounding box intersects the region
+         * on the given plane.
+         * @param z The z-section.
+         * @param t The timepoint.
+         * @param region The region.
+         * @return See above.
+         */
+        Collection<ShapeData> find(int z, int t, Rectangle2D region)
+        {
+            Map<Long, ShapeData> found = new LinkedHashMap<Long, ShapeData>();
+            List<List<Integer>> planes = Arrays.asList(Arrays.asList(z, t),
+                    Arrays.asList(z, -1), Arrays.asList(-1, t),
+                    Arrays.asList(-1, -1));
+            List<Long> keys = cells(region);
+            for (List<Integer> plane : planes) {
+                Map<Long, List<ShapeData>> grid = grids.get(plane);
+                if (grid == null) continue;
+                for (long key : keys) {
+                    List<ShapeData> l = grid.get(key);
+                    if (l == null) continue;
+                    for (ShapeData shape : l) {
+                        if (found.containsKey(shape.getId())) continue;
+                        Rectangle2D r = bounds.get(shape.getId());
+                        if (r != null && overlaps(r, region))
+                            found.put(shape.getId(), shape);
+                    }
+                }
+            }
+            return found.values();
+        }
+    }
+
+    /**
+     * Indexes the ROIs of the image and finds the shapes in the top left
+     * corner of the plane (0, 0).
+     */
+    private void findShapesInRegion()
+            throws Exception
+    {
+        ShapeIndex index = new ShapeIndex(256);
+        RoiCursor cursor = new RoiCursor(image.getId(), -1, -1, 500);
+        while (cursor.hasNext()) {
+            for (ROIData roi : cursor.next()) {
+                index.add(roi);
+            }
+        }
+        Collection<ShapeData> shapes = index.find(0, 0,
+                new Rectangle2D.Double(0, 0, 512, 512));
+        System.err.println("Shapes in region: "+shapes.size());
+    }
+
+// Compute statistics
+// ==================
+
+    /**
+     * Reads the values of a plane from the bytes returned by the pixels
+     * store, without converting the whole plane. The bytes are big-endian
+     * and the bits of a bit plane are packed, most significant first.
+     * The plane can be read from several threads.
+     */
+    private static class Plane
+    {
+
+        /** Identifies the pixels types.*/
+        private static final int BIT = 0, INT8 = 1, UINT8 = 2, INT16 = 3,
+                UINT16 = 4, INT32 = 5, UINT32 = 6, FLOAT = 7, DOUBLE = 8;
+
+        /** The bytes of the plane.*/
+        private final ByteBuffer buffer;
+
+        /** The pixels type, one of the constants above.*/
+        private final int type;
+
+        /** The dimensions of the plane.*/
+        private final int sizeX, sizeY;
+
+        /**
+         * Creates a new instance.
+         * @param data The bytes returned by the pixels store.
+         * @param type The pixels type e.g. {@link PixelsData#UINT16_TYPE}.
+         * @param sizeX The width of the plane.
+         * @param sizeY The height of the plane.
+         */
+        Plane(byte[] data, String type, int sizeX, int sizeY)
+        {
+            buffer = ByteBuffer.wrap(data);
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            if (PixelsData.BIT_TYPE.equals(type)) this.type = BIT;
+            else if (PixelsData.INT8_TYPE.equals(type)) this.type = INT8;
+            else if (PixelsData.UINT8_TYPE.equals(type)) this.type = UINT8;
+            else if (PixelsData.INT16_TYPE.equals(type)) this.type = INT16;
+            else if (PixelsData.UINT16_TYPE.equals(type)) this.type = UINT16;
+            else if (PixelsData.INT32_TYPE.equals(type)) this.type = INT32;
+            else if (PixelsData.UINT32_TYPE.equals(type)) this.type = UINT32;
+            else if (PixelsData.FLOAT_TYPE.equals(type)) this.type = FLOAT;
+            else if (PixelsData.DOUBLE_TYPE.equals(type)) this.type = DOUBLE;
+            else throw new IllegalArgumentException(
+                    "Pixels type not supported: "+type);
+        }
+
+        /**
+         * Returns the value of the pixel.
+         * @param x The x-coordinate of the pixel.
+         * @param y The y-coordinate of the pixel.
+         * @return See above.
+         */
+        double get(int x, int y)
+        {
+            int i = y*sizeX + x;
+            switch (type) {
+                case BIT:
+                    return (buffer.get(i >> 3) >> (7 - (i & 7))) & 1;
+                case INT8:
+                    return buffer.get(i);
+                case UINT8:
+                    return buffer.get(i) & 0xff;
+                case INT16:
+                    return buffer.getShort(2*i);
+                case UINT16:
+                    return buffer.getShort(2*i) & 0xffff;
+                case INT32:
+                    return buffer.getInt(4*i);
+                case UINT32:
+                    return buffer.getInt(4*i) & 0xffffffffL;
+                case FLOAT:
+                    return buffer.getFloat(4*i);
+                default:
+                    return buffer.getDouble(8*i);
+            }
+        }
+    }
+
+    /**
+     * Returns the outline of the shape or <code>null</code> if the shape
+     * does not cover an area. Transforms are not taken into account.
+     * @param shape The shape.
+     * @return See above.
+     */
+    private static java.awt.Shape toOutline(ShapeData shape)
+    {
+        if (shape instanceof RectangleData) {
+            RectangleData r = (RectangleData) shape;
+            return new Rectangle2D.Double(r.getX(), r.getY(), r.getWidth(),
+                    r.getHeight());
+        } else if (shape instanceof EllipseData) {
+            EllipseData e = (EllipseData) shape;
+            return new Ellipse2D.Double(e.getX()-e.getRadiusX(),
+                    e.getY()-e.getRadiusY(), 2*e.getRadiusX(),
+                    2*e.getRadiusY());
+        } else if (shape instanceof PolygonData) {
+            List<Point2D.Double> points = ((PolygonData) shape).getPoints();
+            if (points.isEmpty()) return null;
+            Path2D.Double path = new Path2D.Double();
+            path.moveTo(points.get(0).x, points.get(0).y);
+            for (int i = 1; i < points.size(); i++)
+                path.lineTo(points.get(i).x, points.get(i).y);
+            path.closePath();
+            return path;
+        }
+        return null;
+    }
+
+    /**
+     * Computes the statistics of the pixels whose center is inside the shape.
+     * @param plane The plane.
+     * @param outline The outline of the shape.
+     * @return The minimum, maximum, mean, standard deviation, sum and number
+     *         of pixels.
+     */
+    private static double[] computeStats(Plane plane, java.awt.Shape outline)
+    {
+        int sizeX = plane.sizeX;
+        int sizeY = plane.sizeY;
+        Rectangle2D bounds = outline.getBounds2D();
+        int x0 = Math.max(0, (int) Math.floor(bounds.getMinX()));
+        int y0 = Math.max(0, (int) Math.floor(bounds.getMinY()));
+        int x1 = Math.min(sizeX, (int) Math.ceil(bounds.getMaxX()));
+        int y1 = Math.min(sizeY, (int) Math.ceil(bounds.getMaxY()));
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double sum = 0;
+        double sumSquares = 0;
+        long n = 0;
+        double v;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                if (!outline.contains(x + 0.5, y + 0.5)) continue;
+                v = plane.get(x, y);
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                sum += v;
+                sumSquares += v*v;
+                n++;
+            }
+        }
+        if (n == 0) return new double[] {0, 0, 0, 0, 0, 0};
+        double mean = sum/n;
+        double stddev = Math.sqrt(Math.max(0, sumSquares/n - mean*mean));
+        return new double[] {min, max, mean, stddev, sum, n};
+    }
+
+    /**
+     * Computes the statistics of all the shapes of the given ROIs for one
+     * channel. The shapes are grouped by plane so that each plane is read
+     * only once. The shapes of a plane are measured in parallel while the
+     * next plane is read; at most two planes are held in memory, in the
+     * pixels type of the image.
+     * Shapes not attached to a plane are measured on the first plane.
+     * @param pixels The pixels set the ROIs are linked to.
+     * @param rois The ROIs.
+     * @param c The channel.
+     * @return The minimum, maximum, mean, standard deviation, sum and number
+     *         of pixels keyed by shape id.
+     */
+    private Map<Long, double[]> computeStats(PixelsData pixels,
+            Collection<ROIData> rois, int c)
+            throws Exception
+    {
+        // Group the shapes by plane.
+        Map<List<Integer>, List<ShapeData>> planes =
+                new HashMap<List<Integer>, List<ShapeData>>();
+        List<Integer> plane;
+        List<ShapeData> shapes;
+        for (ROIData roi : rois) {
+            Iterator<List<ShapeData>> i = roi.getIterator();
+            while (i.hasNext()) {
+                for (ShapeData shape : i.next()) {
+                    plane = Arrays.asList(Math.max(0, shape.getZ()),
+                            Math.max(0, shape.getT()));
+                    shapes = planes.get(plane);
+                    if (shapes == null) {
+                        shapes = new ArrayList<ShapeData>();
+                        planes.put(plane, shapes);
+                    }
+                    shapes.add(shape);
+                }
+            }
+        }
+        int sizeX = pixels.getSizeX();
+        int sizeY = pixels.getSizeY();
+        String type = pixels.getPixelType();
+        Map<Long, double[]> results = new HashMap<Long, double[]>();
+        // The tasks of the planes being measured, at most two planes
+        // so that only two decoded planes are in memory.
+        Deque<Map<Long, Future<double[]>>> measuring =
+                new ArrayDeque<Map<Long, Future<double[]>>>();
+        ForkJoinPool pool = new ForkJoinPool();
+        RawPixelsStorePrx store = gateway.getPixelsStore(ctx);
+        try {
+            store.setPixelsId(pixels.getId(), false);
+            for (Entry<List<Integer>, List<ShapeData>> e : planes.entrySet()) {
+                if (measuring.size() >= 2) collect(measuring.poll(), results);
+                final Plane values = new Plane(store.getPlane(
+                        e.getKey().get(0), c, e.getKey().get(1)), type,
+                        sizeX, sizeY);
+                Map<Long, Future<double[]>> futures =
+                        new HashMap<Long, Future<double[]>>();
+                for (ShapeData shape : e.getValue()) {
+                    final java.awt.Shape outline = toOutline(shape);
+                    if (outline == null) continue;
+                    futures.put(shape.getId(), pool.submit(
+                            new Callable<double[]>() {
+                        public double[] call() {
+                            return computeStats(values, outline);
+                        }
+                    }));
+                }
+                measuring.add(futures);
+            }
+            while (!measuring.isEmpty()) {
+                collect(measuring.poll(), results);
+            }
+            return results;
+        } finally {
+            store.close();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the statistics of the shapes of a plane.
+     * @param futures The tasks computing the statistics keyed by shape id.
+     * @param results The map to add the statistics to.
+     */
+    private static void collect(Map<Long, Future<double[]>> futures,
+            Map<Long, double[]> results)
+            throws Exception
+    {
+        for (Entry<Long, Future<double[]>> e : futures.entrySet()) {
+            results.put(e.getKey(), e.getValue().get());
+        }
+    }
+
+    /**
+     * Computes the statistics of the ROIs of several images for one
+     * channel. The images are processed one after the other, the ROIs of
+     * each image being loaded by page.
+     * @param imageIds The ids of the images.
+     * @param c The channel.
+     * @return The minimum, maximum, mean, standard deviation, sum and number
+     *         of pixels keyed by shape id.
+     */
+    private Map<Long, double[]> computeStats(Collection<Long> imageIds, int c)
+            throws Exception
+    {
+        BrowseFacility browse = gateway.getFacility(BrowseFacility.class);
+        Map<Long, double[]> results = new HashMap<Long, double[]>();
+        for (Long imageId : imageIds) {
+            PixelsData pixels = browse.getImage(ctx, imageId)
+                    .getDefaultPixels();
+            if (c >= pixels.getSizeC()) continue;
+            List<ROIData> rois = new ArrayList<ROIData>();
+            RoiCursor cursor = new RoiCursor(imageId, -1, -1, 500);
+            while (cursor.hasNext()) {
+                rois.addAll(cursor.next());
+            }
+            if (!rois.isEmpty())
+                results.putAll(computeStats(pixels, rois, c));
+        }
+        return results;
+    }
+
+    /**
+     * Computes the statistics of the ROIs of the images of the user that
+     * have ROIs, ten images at most.
+     */
+    private void computeStats()
+            throws Exception
+    {
+        ParametersI param = new ParametersI();
+        param.addId(gateway.getLoggedInUser().getId());
+        param.page(0, 10);
+        List<List<RType>> rows = gateway.getQueryService(ctx).projection(
+                "select distinct r.image.id from Roi r "
+                + "where r.details.owner.id = :id", param);
+        List<Long> imageIds = new ArrayList<Long>();
+        for (List<RType> row : rows) {
+            imageIds.add(((RLong) row.get(0)).getValue());
+        }
+        Map<Long, double[]> stats = computeStats(imageIds, 0);
+        for (Entry<Long, double[]> e : stats.entrySet()) {
+            System.err.println("Shape:"+e.getKey()+" min/max/mean/stddev/sum="
+                    +Arrays.toString(Arrays.copyOf(e.getValue(), 5)));
+        }
+    }
+
     /**
      * end-code
      */
@@ -336,6 +1089,10 @@ public class ROIs
 
             image = loadImage(imageId);
             createROIs();
+            saveManyROIs();
+            loadROIsByPage();
+            findShapesInRegion();
+            computeStats();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
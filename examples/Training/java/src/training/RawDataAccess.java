@@ -21,10 +21,22 @@
  */
 package training;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import Ice.AsyncResult;
 import omero.api.RawPixelsStorePrx;
 import omero.gateway.Gateway;
 import omero.gateway.LoginCredentials;
@@ -106,6 +118,82 @@ public class RawDataAccess
         }
     }
 
+// Retrieve plane into a buffer
+// ============================
+
+    /**
+     * Reads a plane into the given buffer, starting at its current position.
+     * The plane is read in bands of full rows. At most <code>window</code>
+     * bands are requested ahead of the one being copied, so that the next
+     * bands are transferred while the previous ones are copied. Each band
+     * is held until it is copied, so the peak memory used on top of the
+     * buffer is <code>window</code> bands, not the whole plane.
+     * @param store The store, already initialized with the pixels set.
+     * @param z The z-section.
+     * @param c The channel.
+     * @param t The timepoint.
+     * @param sizeX The width of the plane.
+     * @param sizeY The height of the plane.
+     * @param rows The number of rows per band.
+     * @param window The maximum number of bands in flight.
+     * @param buffer The buffer to fill, possibly direct.
+     */
+    private void readPlane(RawPixelsStorePrx store, int z, int c, int t,
+            int sizeX, int sizeY, int rows, int window, ByteBuffer buffer)
+            throws Exception
+    {
+        Deque<AsyncResult> pending = new ArrayDeque<AsyncResult>();
+        for (int y = 0; y < sizeY; y += rows) {
+            int height = Math.min(rows, sizeY - y);
+            pending.add(store.begin_getTile(z, c, t, 0, y, sizeX, height));
+            if (pending.size() >= window)
+                buffer.put(store.end_getTile(pending.poll()));
+        }
+        while (!pending.isEmpty()) {
+            buffer.put(store.end_getTile(pending.poll()));
+        }
+    }
+
+    /**
+     * Retrieve all the planes, reusing the same buffer.
+     * This is useful when you need the pixels intensity of many planes
+     * but only one at a time.
+     */
+    private void retrievePlaneIntoBuffer()
+            throws Exception
+    {
+        //To retrieve the image, see above.
+        PixelsData pixels = image.getDefaultPixels();
+        int sizeX = pixels.getSizeX();
+        int sizeY = pixels.getSizeY();
+        int sizeZ = pixels.getSizeZ();
+        int sizeT = pixels.getSizeT();
+        int sizeC = pixels.getSizeC();
+        RawPixelsStorePrx store = null;
+        try {
+            store = gateway.getPixelsStore(ctx);
+            store.setPixelsId(pixels.getId(), false);
+            int rows = Math.max(1, store.getTileSize()[1]);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(
+                    (int) store.getPlaneSize());
+            for (int z = 0; z < sizeZ; z++) {
+                for (int t = 0; t < sizeT; t++) {
+                    for (int c = 0; c < sizeC; c++) {
+                        buffer.clear();
+                        readPlane(store, z, c, t, sizeX, sizeY, rows, 3,
+                                buffer);
+                        buffer.flip();
+                        // Insert code to process the plane.
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new Exception("Cannot read the planes", e);
+        } finally {
+            if (store != null) store.close();
+        }
+    }
+
 // Retrieve tile
 // =============
 
@@ -139,6 +227,261 @@ public class RawDataAccess
         }
     }
 
+// Retrieve tiles asynchronously
+// =============================
+
+    /**
+     * Notified for each tile read, in the order the tiles were requested.
+     */
+    private interface TileHandler
+    {
+
+        /**
+         * Invoked with the bytes of a tile.
+         * @param z The z-section.
+         * @param c The channel.
+         * @param t The timepoint.
+         * @param x The x-coordinate of the tile.
+         * @param y The y-coordinate of the tile.
+         * @param w The width of the tile.
+         * @param h The height of the tile.
+         * @param data The bytes of the tile.
+         */
+        void handle(int z, int c, int t, int x, int y, int w, int h,
+                byte[] data) throws Exception;
+    }
+
+    /**
+     * Reads all the tiles of the pixels set, plane by plane, in Z, T then C
+     * order. Several requests are kept in flight so that the transfer is
+     * not limited by the round trip to the server.
+     * The tiles are handed to the handler in the order they were requested.
+     * @param pixels The pixels set.
+     * @param window The maximum number of requests sent but not yet read.
+     * @param handler The handler notified for each tile.
+     */
+    private void readTiles(PixelsData pixels, int window, TileHandler handler)
+            throws Exception
+    {
+        int sizeX = pixels.getSizeX();
+        int sizeY = pixels.getSizeY();
+        int sizeZ = pixels.getSizeZ();
+        int sizeT = pixels.getSizeT();
+        int sizeC = pixels.getSizeC();
+        Deque<AsyncResult> pending = new ArrayDeque<AsyncResult>();
+        // the position of each tile requested but not yet read.
+        Deque<int[]> requested = new ArrayDeque<int[]>();
+        RawPixelsStorePrx store = null;
+        try {
+            store = gateway.getPixelsStore(ctx);
+            store.setPixelsId(pixels.getId(), false);
+            int[] tileSize = store.getTileSize();
+            for (int z = 0; z < sizeZ; z++) {
+                for (int t = 0; t < sizeT; t++) {
+                    for (int c = 0; c < sizeC; c++) {
+                        for (int y = 0; y < sizeY; y += tileSize[1]) {
+                            for (int x = 0; x < sizeX; x += tileSize[0]) {
+                                int width = Math.min(tileSize[0], sizeX - x);
+                                int height = Math.min(tileSize[1], sizeY - y);
+                                pending.add(store.begin_getTile(z, c, t, x, y,
+                                        width, height));
+                                requested.add(new int[] {z, c, t, x, y, width,
+                                        height});
+                                if (pending.size() >= window) {
+                                    endTile(store, pending, requested, handler);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                endTile(store, pending, requested, handler);
+            }
+        } catch (Exception e) {
+            throw new Exception("Cannot read the tiles", e);
+        } finally {
+            if (store != null) store.close();
+        }
+    }
+
+    /**
+     * Reads the oldest tile requested and hands it to the handler.
+     * @param store The store the tile was requested from.
+     * @param pending The requests in flight.
+     * @param requested The position of each tile in flight.
+     * @param handler The handler to notify.
+     */
+    private void endTile(RawPixelsStorePrx store, Deque<AsyncResult> pending,
+            Deque<int[]> requested, TileHandler handler)
+            throws Exception
+    {
+        byte[] data = store.end_getTile(pending.poll());
+        int[] p = requested.poll();
+        handler.handle(p[0], p[1], p[2], p[3], p[4], p[5], p[6], data);
+    }
+
+    /**
+     * Retrieve all the tiles of the image, keeping 8 requests in flight,
+     * and count the bytes received.
+     */
+    private void retrieveTilesAsync()
+            throws Exception
+    {
+        //To retrieve the image, see above.
+        PixelsData pixels = image.getDefaultPixels();
+        final long[] total = new long[1];
+        readTiles(pixels, 8, new TileHandler() {
+            public void handle(int z, int c, int t, int x, int y, int w,
+                    int h, byte[] data) {
+                // Insert code to process the tile.
+                total[0] += data.length;
+            }
+        });
+        System.err.println("Bytes read: "+total[0]);
+    }
+
+// Cache tiles
+// ===========
+
+    /**
+     * Keeps the most recently used tiles in memory, up to a given number
+     * of bytes. The tiles are keyed by pixels set, plane, region and
+     * resolution level.
+     * The cache must be invalidated when the pixels are modified.
+     */
+    private static class TileCache
+    {
+
+        /** The tiles, in access order.*/
+        private final LinkedHashMap<String, byte[]> tiles =
+                new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+        /** The maximum number of bytes to keep.*/
+        private final long budget;
+
+        /** The number of bytes currently cached.*/
+        private long size;
+
+        /** The number of hits, misses and evicted tiles.*/
+        private long hits, misses, evictions;
+
+        /**
+         * Creates a new cache.
+         * @param budget The maximum number of bytes to keep.
+         */
+        TileCache(long budget)
+        {
+            this.budget = budget;
+        }
+
+        /**
+         * Returns the key identifying the tile.
+         * @return See above.
+         */
+        private static String key(long pixelsId, int level, int z, int c,
+                int t, int x, int y, int w, int h)
+        {
+            return pixelsId+"/"+level+"/"+z+"/"+c+"/"+t+"/"+x+"/"+y+"/"+w+"/"+h;
+        }
+
+        /**
+         * Returns the tile from the cache or reads it from the store.
+         * The store must already be initialized with the pixels set
+         * and resolution level.
+         * @return See above.
+         */
+        byte[] getTile(RawPixelsStorePrx store, long pixelsId,
+                int level, int z, int c, int t, int x, int y, int w, int h)
+                throws Exception
+        {
+            String key = key(pixelsId, level, z, c, t, x, y, w, h);
+            synchronized (this) {
+                byte[] tile = tiles.get(key);
+                if (tile != null) {
+                    hits++;
+                    return tile;
+                }
+                misses++;
+            }
+            // Read the tile without holding the lock.
+            byte[] tile = store.getTile(z, c, t, x, y, w, h);
+            if (tile.length > budget) return tile;
+            synchronized (this) {
+                byte[] previous = tiles.put(key, tile);
+                size += tile.length;
+                if (previous != null) size -= previous.length;
+                Iterator<byte[]> i = tiles.values().iterator();
+                while (size > budget) {
+                    size -= i.next().length;
+                    i.remove();
+                    evictions++;
+                }
+            }
+            return tile;
+        }
+
+        /**
+         * Removes all the tiles of the given pixels set.
+         * To be invoked after writing pixels or saving the store.
+         * @param pixelsId The id of the pixels set.
+         */
+        synchronized void invalidate(long pixelsId)
+        {
+            String prefix = pixelsId+"/";
+            Iterator<Entry<String, byte[]>> i = tiles.entrySet().iterator();
+            Entry<String, byte[]> e;
+            while (i.hasNext()) {
+                e = i.next();
+                if (e.getKey().startsWith(prefix)) {
+                    size -= e.getValue().length;
+                    i.remove();
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return "tiles="+tiles.size()+" bytes="+size+" hits="+hits+
+                    " misses="+misses+" evictions="+evictions;
+        }
+    }
+
+    /**
+     * Retrieve the same tiles twice, the second time from the cache.
+     */
+    private void retrieveTileCached()
+            throws Exception
+    {
+        //To retrieve the image, see above.
+        PixelsData pixels = image.getDefaultPixels();
+        long pixelsId = pixels.getId();
+        int sizeC = pixels.getSizeC();
+        int width = pixels.getSizeX()/2;
+        int height = pixels.getSizeY()/2;
+        // 64MB
+        TileCache cache = new TileCache(64*1024*1024);
+        RawPixelsStorePrx store = null;
+        try {
+            store = gateway.getPixelsStore(ctx);
+            store.setPixelsId(pixelsId, false);
+            int level = store.getResolutionLevel();
+            byte[] tile;
+            for (int i = 0; i < 2; i++) {
+                for (int c = 0; c < sizeC; c++) {
+                    tile = cache.getTile(store, pixelsId, level, 0, c, 0, 0, 0,
+                            width, height);
+                }
+            }
+            System.err.println(cache);
+        } catch (Exception e) {
+            throw new Exception("Cannot read the tiles", e);
+        } finally {
+            if (store != null) store.close();
+        }
+    }
+
 // Retrieve stack
 // ==============
 
@@ -171,6 +514,93 @@ public class RawDataAccess
         }
     }
 
+// Retrieve planes in parallel
+// ===========================
+
+    /**
+     * Reads all the planes of the pixels set using several pixels stores,
+     * each one on its own thread. The planes are copied into a single
+     * buffer ordered by T, then C, then Z, so the image must be smaller
+     * than 2GB. If a plane cannot be read, the other stores stop.
+     * @param pixels The pixels set.
+     * @param stores The maximum number of pixels stores to use.
+     * @return The planes.
+     */
+    private byte[] readPlanesParallel(PixelsData pixels, int stores)
+            throws Exception
+    {
+        final long pixelsId = pixels.getId();
+        final int sizeZ = pixels.getSizeZ();
+        final int sizeC = pixels.getSizeC();
+        final int count = sizeZ*sizeC*pixels.getSizeT();
+        int n = Math.max(1, Math.min(stores, count));
+        final AtomicInteger next = new AtomicInteger();
+        final byte[][] buffer = new byte[1][];
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < n; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        RawPixelsStorePrx store = null;
+                        try {
+                            store = gateway.getPixelsStore(ctx);
+                            store.setPixelsId(pixelsId, false);
+                            int planeSize = (int) store.getPlaneSize();
+                            synchronized (buffer) {
+                                if (buffer[0] == null) {
+                                    long total = (long) planeSize*count;
+                                    if (total > Integer.MAX_VALUE)
+                                        throw new IllegalArgumentException(
+                                                "Image too large for a single "
+                                                + "buffer: "+total+" bytes");
+                                    buffer[0] = new byte[(int) total];
+                                }
+                            }
+                            int index;
+                            while ((index = next.getAndIncrement()) < count) {
+                                int z = index % sizeZ;
+                                int c = (index / sizeZ) % sizeC;
+                                int t = index / (sizeZ*sizeC);
+                                byte[] plane = store.getPlane(z, c, t);
+                                System.arraycopy(plane, 0, buffer[0],
+                                        (int) ((long) index*planeSize),
+                                        planeSize);
+                            }
+                        } catch (Exception e) {
+                            // Stop the other stores.
+                            next.set(count);
+                            throw e;
+                        } finally {
+                            if (store != null) store.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+            return buffer[0];
+        } catch (Exception e) {
+            throw new Exception("Cannot read the planes", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Retrieve all the planes of the image into a single buffer using
+     * four pixels stores.
+     */
+    private void retrievePlanesParallel()
+            throws Exception
+    {
+        //To retrieve the image, see above.
+        byte[] planes = readPlanesParallel(image.getDefaultPixels(), 4);
+        System.err.println("Bytes read: "+planes.length);
+    }
+
 // Retrieve hypercube
 // ==================
 
@@ -216,6 +646,164 @@ public class RawDataAccess
         }
     }
 
+// Decode pixel values
+// ===================
+
+    /**
+     * Converts the raw bytes of a plane or tile of a 16-bit pixels type.
+     * The bytes are big-endian and are copied in bulk through a typed view.
+     * @param data The bytes returned by the pixels store.
+     * @return See above.
+     */
+    private static short[] toShorts(byte[] data)
+    {
+        short[] values = new short[data.length/2];
+        ByteBuffer.wrap(data).asShortBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Converts the raw bytes of a plane or tile of a 32-bit integer
+     * pixels type.
+     * @param data The bytes returned by the pixels store.
+     * @return See above.
+     */
+    private static int[] toInts(byte[] data)
+    {
+        int[] values = new int[data.length/4];
+        ByteBuffer.wrap(data).asIntBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Converts the raw bytes of a plane or tile of float pixels.
+     * @param data The bytes returned by the pixels store.
+     * @return See above.
+     */
+    private static float[] toFloats(byte[] data)
+    {
+        float[] values = new float[data.length/4];
+        ByteBuffer.wrap(data).asFloatBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Converts the raw bytes of a plane or tile of double pixels.
+     * @param data The bytes returned by the pixels store.
+     * @return See above.
+     */
+    private static double[] toDoubles(byte[] data)
+    {
+        double[] values = new double[data.length/8];
+        ByteBuffer.wrap(data).asDoubleBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Unpacks the raw bytes of a plane or tile of bit pixels, eight pixels
+     * per byte with the most significant bit first.
+     * @param data The bytes returned by the pixels store.
+     * @param count The number of pixels.
+     * @return The values, 0 or 1.
+     */
+    private static byte[] unpackBits(byte[] data, int count)
+    {
+        byte[] values = new byte[count];
+        for (int i = 0; i < count; i++)
+            values[i] = (byte) ((data[i >> 3] >> (7 - (i & 7))) & 1);
+        return values;
+    }
+
+    /**
+     * Computes the minimum, maximum and mean of the pixels. The bytes are
+     * converted to the primitive type of the pixels; each value is only
+     * widened to a double when it is added up.
+     * @param data The bytes returned by the pixels store.
+     * @param type The pixels type e.g. {@link PixelsData#UINT16_TYPE}.
+     * @param count The number of pixels.
+     * @return The minimum, maximum and mean.
+     */
+    private static double[] statistics(byte[] data, String type, int count)
+    {
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double sum = 0;
+        double v;
+        if (PixelsData.INT8_TYPE.equals(type)
+                || PixelsData.UINT8_TYPE.equals(type)
+                || PixelsData.BIT_TYPE.equals(type)) {
+            byte[] values = PixelsData.BIT_TYPE.equals(type) ?
+                    unpackBits(data, count) : data;
+            boolean unsigned = !PixelsData.INT8_TYPE.equals(type);
+            for (byte b : values) {
+                v = unsigned ? b & 0xff : b;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                sum += v;
+            }
+        } else if (PixelsData.INT16_TYPE.equals(type)
+                || PixelsData.UINT16_TYPE.equals(type)) {
+            boolean unsigned = PixelsData.UINT16_TYPE.equals(type);
+            for (short value : toShorts(data)) {
+                v = unsigned ? value & 0xffff : value;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                sum += v;
+            }
+        } else if (PixelsData.INT32_TYPE.equals(type)
+                || PixelsData.UINT32_TYPE.equals(type)) {
+            boolean unsigned = PixelsData.UINT32_TYPE.equals(type);
+            for (int value : toInts(data)) {
+                v = unsigned ? value & 0xffffffffL : value;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                sum += v;
+            }
+        } else if (PixelsData.FLOAT_TYPE.equals(type)) {
+            for (float value : toFloats(data)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+        } else if (PixelsData.DOUBLE_TYPE.equals(type)) {
+            for (double value : toDoubles(data)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+        }
+        return new double[] {min, max, count == 0 ? 0 : sum/count};
+    }
+
+    /**
+     * Computes the minimum, maximum and mean intensity of each channel
+     * of the first plane.
+     */
+    private void computeStatistics()
+            throws Exception
+    {
+        //To retrieve the image, see above.
+        PixelsData pixels = image.getDefaultPixels();
+        String type = pixels.getPixelType();
+        int count = pixels.getSizeX()*pixels.getSizeY();
+        int sizeC = pixels.getSizeC();
+        RawPixelsStorePrx store = null;
+        try {
+            store = gateway.getPixelsStore(ctx);
+            store.setPixelsId(pixels.getId(), false);
+            for (int c = 0; c < sizeC; c++) {
+                double[] stats = statistics(store.getPlane(0, c, 0), type,
+                        count);
+                System.err.println("channel="+c+" min="+stats[0]+" max="
+                        +stats[1]+" mean="+stats[2]);
+            }
+        } catch (Exception e) {
+            throw new Exception("Cannot compute the statistics", e);
+        } finally {
+            if (store != null) store.close();
+        }
+    }
+
  // Retrieve histogram
  // ==================
 
@@ -278,9 +866,14 @@ public class RawDataAccess
             ctx = new SecurityContext(user.getGroupId());
             image = loadImage(imageId);
             retrievePlane();
+            retrievePlaneIntoBuffer();
             retrieveTile();
+            retrieveTilesAsync();
+            retrieveTileCached();
             retrieveStack();
+            retrievePlanesParallel();
             retrieveHypercube();
+            computeStatistics();
             retrieveHistogram();
         } catch (Exception e) {
             e.printStackTrace();
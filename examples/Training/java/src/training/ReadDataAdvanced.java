@@ -21,18 +21,37 @@
  */
 package training;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import omero.ServerError;
 import omero.api.IContainerPrx;
 import omero.api.IQueryPrx;
+import omero.api.LongPair;
+import omero.cmd.CmdCallbackI;
+import omero.cmd.DiskUsage2;
+import omero.cmd.DiskUsage2Response;
+import omero.cmd.ERR;
+import omero.cmd.Request;
+import omero.cmd.Response;
+import omero.cmd.Status;
 import omero.gateway.Gateway;
 import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
+import omero.gateway.facility.BrowseFacility;
 import omero.gateway.facility.DataManagerFacility;
+import omero.gateway.util.Requests;
 import omero.log.SimpleLogger;
 import omero.model.Dataset;
 import omero.model.IObject;
@@ -220,6 +239,178 @@ public class ReadDataAdvanced
         }
     }
 
+    /**
+     * Callback completing a future with the response of the command.
+     */
+    private static class FutureCallback extends CmdCallbackI
+    {
+
+        /**
+         * Completed with the response. Created on first use since the
+         * server may notify before the constructor returns.
+         */
+        private CompletableFuture<Response> future;
+
+        /**
+         * Takes over the handle of the given callback.
+         * @param cb The callback returned when submitting the request.
+         */
+        FutureCallback(CmdCallbackI cb) throws ServerError
+        {
+            super(cb);
+        }
+
+        /**
+         * Returns the future completed with the response.
+         * @return See above.
+         */
+        synchronized CompletableFuture<Response> getFuture()
+        {
+            if (future == null) future = new CompletableFuture<Response>();
+            return future;
+        }
+
+        @Override
+        public void onFinished(Response rsp, Status status,
+                Ice.Current current)
+        {
+            super.onFinished(rsp, status, current);
+            getFuture().complete(rsp);
+            close(true);
+        }
+
+        @Override
+        public void close(boolean closeHandle)
+        {
+            super.close(closeHandle);
+            getFuture().completeExceptionally(
+                    new IllegalStateException("Callback closed"));
+        }
+    }
+
+    /**
+     * Submits the request.
+     * @param request The request.
+     * @return The callback notified when the command finishes.
+     */
+    private FutureCallback submit(Request request)
+            throws Exception
+    {
+        CmdCallbackI cb = gateway.submit(ctx, request);
+        FutureCallback fcb = new FutureCallback(cb);
+        cb.close(false);
+        return fcb;
+    }
+
+    /**
+     * Waits for the command to finish. The handle is polled every few
+     * seconds in case the notification was missed. If the command has not
+     * finished in time, the callback and the handle are closed.
+     * @param fcb The callback returned by {@link #submit(Request)}.
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return The response.
+     */
+    private Response waitFor(FutureCallback fcb, long timeout)
+            throws Exception
+    {
+        long deadline = System.currentTimeMillis()+timeout;
+        while (true) {
+            try {
+                return fcb.getFuture().get(5, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                try {
+                    if (System.currentTimeMillis() >= deadline)
+                        throw new TimeoutException("No response after "
+                                +timeout+"ms");
+                    fcb.poll();
+                } catch (Exception ex) {
+                    fcb.close(true);
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieve the disk usage of several users with a single request.
+     * The response gives the totals for each user and group pair, so a
+     * request per user is not needed.
+     * @param userIds The ids of the users.
+     */
+    private void loadDiskUsageByUser(Collection<Long> userIds)
+            throws Exception
+    {
+        DiskUsage2 request = Requests.diskUsage().target(
+                Collections.singletonMap("Experimenter", userIds)).build();
+        Response rsp = waitFor(submit(request), 5*60*1000);
+        if (!(rsp instanceof DiskUsage2Response))
+            throw new Exception("Cannot load the disk usage: "+rsp);
+        DiskUsage2Response usage = (DiskUsage2Response) rsp;
+        for (Entry<LongPair, Long> e : usage.totalBytesUsed.entrySet()) {
+            System.out.println("User: "+e.getKey().first+" Group: "
+                    +e.getKey().second+" Bytes: "+e.getValue());
+        }
+    }
+
+    /**
+     * Retrieve the disk usage of each project. The totals of a request are
+     * given per user and group, so each project needs its own request.
+     * At most <code>window</code> requests run at once so that the server
+     * processes a few of them concurrently without being flooded.
+     * A failure is reported for its project only.
+     * @param projectIds The ids of the projects.
+     * @param window The maximum number of requests running at once.
+     */
+    private void loadDiskUsageByProject(Collection<Long> projectIds,
+            int window)
+            throws Exception
+    {
+        Deque<Long> ids = new ArrayDeque<Long>();
+        Deque<FutureCallback> pending = new ArrayDeque<FutureCallback>();
+        for (Long id : projectIds) {
+            if (pending.size() >= window)
+                printDiskUsage(ids.poll(), pending.poll());
+            DiskUsage2 request = Requests.diskUsage().target(
+                    Collections.singletonMap("Project",
+                            Collections.singletonList(id))).build();
+            pending.add(submit(request));
+            ids.add(id);
+        }
+        while (!pending.isEmpty()) {
+            printDiskUsage(ids.poll(), pending.poll());
+        }
+    }
+
+    /**
+     * Waits for the disk usage of the project and prints it, or the error.
+     * @param projectId The id of the project.
+     * @param fcb The callback of the request.
+     */
+    private void printDiskUsage(long projectId, FutureCallback fcb)
+    {
+        Response rsp;
+        try {
+            rsp = waitFor(fcb, 5*60*1000);
+        } catch (Exception e) {
+            System.out.println("Project: "+projectId+" Error: "+e);
+            return;
+        }
+        if (rsp instanceof ERR) {
+            ERR err = (ERR) rsp;
+            System.out.println("Project: "+projectId+" Error: "
+                    +err.category+" "+err.name+" "+err.parameters);
+            return;
+        }
+        if (!(rsp instanceof DiskUsage2Response)) {
+            System.out.println("Project: "+projectId+" Error: "+rsp);
+            return;
+        }
+        long total = 0;
+        for (Long bytes : ((DiskUsage2Response) rsp).totalBytesUsed.values())
+            total += bytes;
+        System.out.println("Project: "+projectId+" Bytes: "+total);
+    }
+
     /**
      * Connects and invokes the various methods.
      *
@@ -238,6 +429,13 @@ public class ReadDataAdvanced
             loadDatasetsByName();
             loadTagsByNS();
             loadProjectsAndOrphanedDatasets();
+            loadDiskUsageByUser(Arrays.asList(user.getId()));
+            List<Long> projectIds = new ArrayList<Long>();
+            for (ProjectData p : gateway.getFacility(BrowseFacility.class)
+                    .getProjects(ctx)) {
+                projectIds.add(p.getId());
+            }
+            loadDiskUsageByProject(projectIds, 4);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
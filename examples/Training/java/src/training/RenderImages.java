@@ -23,14 +23,36 @@ package training;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
+import omero.RLong;
+import omero.RType;
+import Ice.AsyncResult;
+import omero.api.IQueryPrx;
 import omero.api.RenderingEnginePrx;
 import omero.api.ThumbnailStorePrx;
 import omero.gateway.Gateway;
@@ -39,6 +61,8 @@ import omero.gateway.SecurityContext;
 import omero.gateway.facility.BrowseFacility;
 import omero.log.SimpleLogger;
 import omero.romio.PlaneDef;
+import omero.romio.RegionDef;
+import omero.sys.ParametersI;
 import omero.gateway.model.ExperimenterData;
 import omero.gateway.model.ImageData;
 import omero.gateway.model.PixelsData;
@@ -132,6 +156,307 @@ public class RenderImages
         }
     }
 
+// Render several regions
+// ======================
+
+    /**
+     * Renders the given planes or regions with the loaded rendering engine.
+     * All the requests are sent before the first image is read back,
+     * so only one round trip is paid for the whole list.
+     * @param proxy The rendering engine, already loaded.
+     * @param planes The planes or regions to render.
+     * @return The compressed images, in the same order as the planes.
+     */
+    private List<byte[]> renderCompressed(RenderingEnginePrx proxy,
+            List<PlaneDef> planes)
+            throws Exception
+    {
+        List<AsyncResult> pending = new ArrayList<AsyncResult>();
+        for (PlaneDef pDef : planes) {
+            pending.add(proxy.begin_renderCompressed(pDef));
+        }
+        List<byte[]> results = new ArrayList<byte[]>();
+        for (AsyncResult r : pending) {
+            results.add(proxy.end_renderCompressed(r));
+        }
+        return results;
+    }
+
+    /**
+     * Renders the four quarters of each z-section of the first timepoint.
+     * For a multi-resolution image, set the resolution level first with
+     * {@link RenderingEnginePrx#setResolutionLevel(int)}; the regions
+     * of one call must be at the same level.
+     */
+    private void renderRegions()
+            throws Exception
+    {
+        PixelsData pixels = image.getDefaultPixels();
+        long pixelsId = pixels.getId();
+        int width = pixels.getSizeX()/2;
+        int height = pixels.getSizeY()/2;
+        RenderingEnginePrx proxy = null;
+        try {
+            proxy = gateway.getRenderingService(ctx, pixelsId);
+            proxy.lookupPixels(pixelsId);
+            if (!(proxy.lookupRenderingDef(pixelsId))) {
+                proxy.resetDefaultSettings(true);
+                proxy.lookupRenderingDef(pixelsId);
+            }
+            proxy.load();
+            List<PlaneDef> planes = new ArrayList<PlaneDef>();
+            PlaneDef pDef;
+            for (int z = 0; z < pixels.getSizeZ(); z++) {
+                for (int i = 0; i < 4; i++) {
+                    pDef = new PlaneDef();
+                    pDef.z = z;
+                    pDef.t = 0;
+                    pDef.slice = omero.romio.XY.value;
+                    pDef.region = new RegionDef((i % 2)*width, (i / 2)*height,
+                            width, height);
+                    planes.add(pDef);
+                }
+            }
+            List<byte[]> images = renderCompressed(proxy, planes);
+            System.err.println("Regions rendered: "+images.size());
+        } catch (Exception e) {
+            throw new Exception("Cannot render image", e);
+        } finally {
+            if (proxy != null) proxy.close();
+        }
+    }
+
+// Reuse rendering engines
+// =======================
+
+    /**
+     * Keeps the rendering engines of the most recently viewed pixels sets
+     * loaded so that switching back to an image does not load it again.
+     * An engine is acquired before rendering and released afterwards. Only
+     * the engines not in use are closed: the least recently used ones when
+     * there are more than the capacity, and the ones idle for longer than
+     * the idle time, checked in the background.
+     * Engines are loaded outside of the lock so that loading one pixels set
+     * does not block the callers of the others.
+     */
+    private class RenderingEnginePool
+    {
+
+        /** An engine of the pool.*/
+        private class Engine
+        {
+
+            /** Completed with the engine once it is loaded.*/
+            private final CompletableFuture<RenderingEnginePrx> proxy =
+                    new CompletableFuture<RenderingEnginePrx>();
+
+            /** The number of callers that acquired the engine.*/
+            private int users;
+
+            /** The time the engine was last released.*/
+            private long lastUsed;
+        }
+
+        /** The engines keyed by pixels id, in access order.*/
+        private final LinkedHashMap<Long, Engine> engines =
+                new LinkedHashMap<Long, Engine>(16, 0.75f, true);
+
+        /** The maximum number of engines to keep.*/
+        private final int capacity;
+
+        /** The time in milliseconds after which an unused engine is closed.*/
+        private final long idleTime;
+
+        /** Closes the idle engines in the background.*/
+        private final ScheduledExecutorService scheduler =
+                Executors.newSingleThreadScheduledExecutor();
+
+        /**
+         * Creates a new pool.
+         * @param capacity The maximum number of engines to keep.
+         * @param idleTime The time in milliseconds after which an unused
+         *                 engine is closed.
+         */
+        RenderingEnginePool(int capacity, long idleTime)
+        {
+            this.capacity = capacity;
+            this.idleTime = idleTime;
+            long period = Math.max(1000, idleTime/2);
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    close(evict());
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Returns the loaded rendering engine for the given pixels set,
+         * loading it if needed. The engine must be released with
+         * {@link #release(long)} once the caller is done with it.
+         * @param pixelsId The id of the pixels set.
+         * @return See above.
+         */
+        RenderingEnginePrx acquire(long pixelsId)
+                throws Exception
+        {
+            Engine engine;
+            boolean load = false;
+            synchronized (this) {
+                engine = engines.get(pixelsId);
+                if (engine == null) {
+                    engine = new Engine();
+                    engines.put(pixelsId, engine);
+                    load = true;
+                }
+                engine.users++;
+            }
+            if (load) {
+                try {
+                    engine.proxy.complete(load(pixelsId));
+                } catch (Exception e) {
+                    synchronized (this) {
+                        engines.remove(pixelsId);
+                    }
+                    engine.proxy.completeExceptionally(e);
+                }
+                close(evict());
+            }
+            try {
+                return engine.proxy.get();
+            } catch (ExecutionException e) {
+                throw new Exception("Cannot load the rendering engine",
+                        e.getCause());
+            }
+        }
+
+        /**
+         * Releases an engine returned by {@link #acquire(long)}.
+         * @param pixelsId The id of the pixels set.
+         */
+        void release(long pixelsId)
+        {
+            synchronized (this) {
+                Engine engine = engines.get(pixelsId);
+                if (engine == null) return;
+                engine.users--;
+                engine.lastUsed = System.currentTimeMillis();
+            }
+            close(evict());
+        }
+
+        /**
+         * Creates and loads a rendering engine.
+         * @param pixelsId The id of the pixels set.
+         * @return See above.
+         */
+        private RenderingEnginePrx load(long pixelsId)
+                throws Exception
+        {
+            RenderingEnginePrx proxy = gateway.getRenderingService(ctx,
+                    pixelsId);
+            try {
+                proxy.lookupPixels(pixelsId);
+                if (!(proxy.lookupRenderingDef(pixelsId))) {
+                    proxy.resetDefaultSettings(true);
+                    proxy.lookupRenderingDef(pixelsId);
+                }
+                proxy.load();
+                return proxy;
+            } catch (Exception e) {
+                proxy.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Removes the engines not in use that are idle or beyond the
+         * capacity, least recently used first.
+         * @return The engines to close.
+         */
+        private synchronized List<RenderingEnginePrx> evict()
+        {
+            List<RenderingEnginePrx> closing =
+                    new ArrayList<RenderingEnginePrx>();
+            long now = System.currentTimeMillis();
+            Iterator<Engine> i = engines.values().iterator();
+            Engine engine;
+            while (i.hasNext()) {
+                engine = i.next();
+                // The engines being loaded have a user.
+                if (engine.users > 0) continue;
+                if (engines.size() > capacity
+                        || now - engine.lastUsed > idleTime) {
+                    closing.add(engine.proxy.getNow(null));
+                    i.remove();
+                }
+            }
+            return closing;
+        }
+
+        /**
+         * Closes all the engines. The pool must not be used afterwards.
+         */
+        void close()
+        {
+            scheduler.shutdownNow();
+            List<RenderingEnginePrx> closing =
+                    new ArrayList<RenderingEnginePrx>();
+            synchronized (this) {
+                for (Engine engine : engines.values()) {
+                    if (engine.proxy.isDone()
+                            && !engine.proxy.isCompletedExceptionally())
+                        closing.add(engine.proxy.getNow(null));
+                }
+                engines.clear();
+            }
+            close(closing);
+        }
+
+        /**
+         * Closes the engines, outside of the lock.
+         * @param closing The engines to close.
+         */
+        private void close(List<RenderingEnginePrx> closing)
+        {
+            for (RenderingEnginePrx proxy : closing) {
+                try {
+                    proxy.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders the image several times, the engine being loaded only once.
+     */
+    private void renderWithPool()
+            throws Exception
+    {
+        PixelsData pixels = image.getDefaultPixels();
+        // keep 10 engines, close the ones unused for 5 minutes.
+        RenderingEnginePool pool = new RenderingEnginePool(10, 5*60*1000);
+        try {
+            PlaneDef pDef = new PlaneDef();
+            pDef.z = 0;
+            pDef.t = 0;
+            pDef.slice = omero.romio.XY.value;
+            for (int i = 0; i < 3; i++) {
+                RenderingEnginePrx proxy = pool.acquire(pixels.getId());
+                try {
+                    byte[] compressed = proxy.renderCompressed(pDef);
+                } finally {
+                    pool.release(pixels.getId());
+                }
+            }
+        } catch (Exception e) {
+            throw new Exception("Cannot render image", e);
+        } finally {
+            pool.close();
+        }
+    }
+
 // Retrieve thumbnails
 // ===================
 
@@ -164,6 +489,262 @@ public class RenderImages
         }
     }
 
+// Retrieve thumbnails in batches
+// ==============================
+
+    /**
+     * Notified each time a batch of thumbnails has been retrieved.
+     */
+    private interface ThumbnailHandler
+    {
+
+        /**
+         * Invoked with the thumbnails of one batch, keyed by pixels id.
+         * Invocations may come from several threads.
+         * @param thumbnails The thumbnails.
+         */
+        void handle(Map<Long, byte[]> thumbnails);
+    }
+
+    /**
+     * Retrieves the thumbnails of the given pixels sets in batches, using
+     * several thumbnail stores concurrently. Each batch is handed to the
+     * handler as soon as it arrives. The first batch is kept small so that
+     * the first thumbnails are displayed quickly.
+     * @param pixelsIds The ids of the pixels sets.
+     * @param size The size of the longest side of the thumbnails.
+     * @param handler The handler notified for each batch.
+     */
+    private void retrieveThumbnailsInBatches(Collection<Long> pixelsIds,
+            final int size, final ThumbnailHandler handler)
+            throws Exception
+    {
+        int first = 10;
+        int batchSize = 100;
+        final LinkedBlockingQueue<List<Long>> batches =
+                new LinkedBlockingQueue<List<Long>>();
+        List<Long> batch = new ArrayList<Long>();
+        for (Long id : pixelsIds) {
+            batch.add(id);
+            if (batch.size() == (batches.isEmpty() ? first : batchSize)) {
+                batches.add(batch);
+                batch = new ArrayList<Long>();
+            }
+        }
+        if (!batch.isEmpty()) batches.add(batch);
+        // number of batches loaded concurrently.
+        int n = Math.max(1, Math.min(4, batches.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < n; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        ThumbnailStorePrx store = null;
+                        try {
+                            store = gateway.getThumbnailService(ctx);
+                            List<Long> ids;
+                            while ((ids = batches.poll()) != null) {
+                                handler.handle(
+                                        store.getThumbnailByLongestSideSet(
+                                        omero.rtypes.rint(size), ids));
+                            }
+                        } finally {
+                            if (store != null) store.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (Exception e) {
+            throw new Exception("Cannot retrieve thumbnails", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Retrieves the thumbnails in batches and creates the images to display
+     * as each batch arrives.
+     */
+    private void showThumbnailsInBatches()
+            throws Exception
+    {
+        PixelsData pixels = image.getDefaultPixels();
+        final Map<Long, BufferedImage> results =
+                new HashMap<Long, BufferedImage>();
+        retrieveThumbnailsInBatches(Arrays.asList(pixels.getId()), 96,
+                new ThumbnailHandler() {
+            public void handle(Map<Long, byte[]> thumbnails) {
+                for (Entry<Long, byte[]> entry : thumbnails.entrySet()) {
+                    try {
+                        BufferedImage thumbnail = ImageIO.read(
+                                new ByteArrayInputStream(entry.getValue()));
+                        synchronized (results) {
+                            results.put(entry.getKey(), thumbnail);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+// Cache thumbnails on disk
+// ========================
+
+    /**
+     * Retrieves the thumbnails, reusing the ones previously saved in the
+     * given directory. A saved thumbnail is named after the pixels set,
+     * the size, the id of the rendering settings used and the event of their
+     * last update.
+     * As the thumbnail service does, the rendering settings of the user are
+     * used if any, otherwise the ones of the owner of the image.
+     * A thumbnail is reused only if those settings have not changed since.
+     * The rendering settings of all the pixels sets are checked with a
+     * single query and the directory is listed once.
+     * @param dir The cache directory.
+     * @param maxBytes The maximum size of the cache.
+     * @param pixelsIds The ids of the pixels sets.
+     * @param size The size of the longest side of the thumbnails.
+     * @return The thumbnails keyed by pixels id.
+     */
+    private Map<Long, byte[]> retrieveCachedThumbnails(File dir, long maxBytes,
+            Collection<Long> pixelsIds, int size)
+            throws Exception
+    {
+        // Find the rendering settings used for the thumbnails.
+        long userId = gateway.getLoggedInUser().getId();
+        ParametersI param = new ParametersI();
+        param.addIds(pixelsIds);
+        param.addLong("owner", userId);
+        IQueryPrx svc = gateway.getQueryService(ctx);
+        List<List<RType>> rows = svc.projection(
+                "select r.pixels.id, r.id, r.details.updateEvent.id, "
+                + "r.details.owner.id from RenderingDef as r "
+                + "where r.pixels.id in (:ids) and "
+                + "(r.details.owner.id = :owner "
+                + "or r.details.owner.id = r.pixels.details.owner.id)",
+                param);
+        Map<Long, String> names = new HashMap<Long, String>();
+        for (List<RType> row : rows) {
+            long pixelsId = ((RLong) row.get(0)).getValue();
+            boolean mine = ((RLong) row.get(3)).getValue() == userId;
+            // The settings of the user take precedence.
+            if (!mine && names.containsKey(pixelsId)) continue;
+            names.put(pixelsId, pixelsId+"_"+size+"_"
+                    +((RLong) row.get(1)).getValue()+"_"
+                    +((RLong) row.get(2)).getValue()+".jpg");
+        }
+        // Index the cached files by pixels set and size.
+        Map<String, File> cached = new HashMap<String, File>();
+        Map<String, List<File>> byPrefix = new HashMap<String, List<File>>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String[] parts = file.getName().split("_");
+                if (parts.length < 2) continue;
+                cached.put(file.getName(), file);
+                String prefix = parts[0]+"_"+parts[1]+"_";
+                List<File> l = byPrefix.get(prefix);
+                if (l == null) {
+                    l = new ArrayList<File>();
+                    byPrefix.put(prefix, l);
+                }
+                l.add(file);
+            }
+        }
+        // Read the valid thumbnails from the cache.
+        Map<Long, byte[]> results = new HashMap<Long, byte[]>();
+        List<Long> missing = new ArrayList<Long>();
+        File f;
+        for (Long id : pixelsIds) {
+            String name = names.get(id);
+            f = name == null ? null : cached.get(name);
+            if (f != null && f.isFile()) {
+                results.put(id, Files.readAllBytes(f.toPath()));
+                f.setLastModified(System.currentTimeMillis());
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            // Load the others and save them.
+            ThumbnailStorePrx store = null;
+            try {
+                store = gateway.getThumbnailService(ctx);
+                Map<Long, byte[]> map = store.getThumbnailByLongestSideSet(
+                        omero.rtypes.rint(size), missing);
+                results.putAll(map);
+                for (Entry<Long, byte[]> entry : map.entrySet()) {
+                    String name = names.get(entry.getKey());
+                    if (name == null || entry.getValue().length == 0)
+                        continue;
+                    // Remove the thumbnails made with older settings.
+                    List<File> old = byPrefix.remove(
+                            entry.getKey()+"_"+size+"_");
+                    if (old != null) {
+                        for (File file : old) {
+                            cached.remove(file.getName());
+                            file.delete();
+                        }
+                    }
+                    f = new File(dir, name);
+                    FileOutputStream stream = new FileOutputStream(f);
+                    try {
+                        stream.write(entry.getValue());
+                    } finally {
+                        stream.close();
+                    }
+                    cached.put(name, f);
+                }
+            } catch (Exception e) {
+                throw new Exception("Cannot retrieve thumbnails", e);
+            } finally {
+                if (store != null) store.close();
+            }
+        }
+        // Remove the least recently used thumbnails if the cache is too big.
+        long total = 0;
+        for (File file : cached.values()) {
+            total += file.length();
+        }
+        if (total <= maxBytes) return results;
+        List<File> sorted = new ArrayList<File>(cached.values());
+        Collections.sort(sorted, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        Iterator<File> i = sorted.iterator();
+        while (total > maxBytes && i.hasNext()) {
+            f = i.next();
+            total -= f.length();
+            f.delete();
+        }
+        return results;
+    }
+
+    /**
+     * Retrieves the thumbnail using a cache in the temporary directory.
+     */
+    private void showCachedThumbnails()
+            throws Exception
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "omero-thumbnails");
+        dir.mkdirs();
+        PixelsData pixels = image.getDefaultPixels();
+        // 100MB
+        Map<Long, byte[]> map = retrieveCachedThumbnails(dir, 100*1024*1024,
+                Arrays.asList(pixels.getId()), 96);
+        System.err.println("Thumbnails: "+map.size());
+    }
+
     /**
      * end-code
      */
@@ -184,7 +765,11 @@ public class RenderImages
             ctx = new SecurityContext(user.getGroupId());
             image = loadImage(imageId);
             createRenderingEngine();
+            renderRegions();
+            renderWithPool();
             retrieveThumbnails();
+            showThumbnailsInBatches();
+            showCachedThumbnails();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
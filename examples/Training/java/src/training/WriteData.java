@@ -25,11 +25,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import Ice.AsyncResult;
 import omero.api.IMetadataPrx;
 import omero.api.IQueryPrx;
 import omero.api.RawFileStorePrx;
@@ -285,6 +294,291 @@ public class WriteData
         // To attach to a Dataset use DatasetAnnotationLink;
     }
 
+// Upload files in parallel
+// ========================
+
+    /**
+     * Adjusts the size of the blocks written to one raw file store from the
+     * measured throughput, between the given bounds.
+     * The throughput is measured over a window of several acknowledged
+     * blocks, from the bytes written and the elapsed time, so that the time
+     * a block spends queued behind the others in flight is not counted.
+     * The size keeps changing in the same direction while the throughput
+     * does not drop, and changes direction when it does.
+     */
+    private static class BlockSizer
+    {
+
+        /** The bounds of the block size.*/
+        private final int minBlockSize, maxBlockSize;
+
+        /** The number of blocks acknowledged before adjusting the size.*/
+        private final int window;
+
+        /** The current size of a block.*/
+        private int blockSize;
+
+        /** The throughput measured over the last window, in bytes per ms.*/
+        private double throughput;
+
+        /** <code>true</code> if the block size is being increased.*/
+        private boolean growing = true;
+
+        /** The bytes acknowledged in the current window.*/
+        private long bytes;
+
+        /** The blocks acknowledged in the current window.*/
+        private int count;
+
+        /** When the current window started.*/
+        private long start = System.currentTimeMillis();
+
+        /**
+         * Creates a new instance.
+         * @param minBlockSize The minimum size of a block.
+         * @param maxBlockSize The maximum size of a block.
+         * @param window The number of blocks measured before adjusting.
+         */
+        BlockSizer(int minBlockSize, int maxBlockSize, int window)
+        {
+            this.minBlockSize = minBlockSize;
+            this.maxBlockSize = maxBlockSize;
+            this.window = Math.max(1, window);
+            blockSize = minBlockSize;
+        }
+
+        /**
+         * Returns the size of the next block.
+         * @return See above.
+         */
+        int getBlockSize()
+        {
+            return blockSize;
+        }
+
+        /**
+         * Records that a block has been written and adjusts the block size
+         * at the end of each window.
+         * @param length The size of the block.
+         */
+        void written(int length)
+        {
+            bytes += length;
+            if (++count < window) return;
+            long now = System.currentTimeMillis();
+            double current = bytes/(double) Math.max(1, now-start);
+            if (current < throughput*0.9) growing = !growing;
+            throughput = current;
+            if (growing) blockSize = Math.min(maxBlockSize, blockSize*2);
+            else blockSize = Math.max(minBlockSize, blockSize/2);
+            bytes = 0;
+            count = 0;
+            start = now;
+        }
+    }
+
+    /**
+     * Uploads files as original files. Several files are uploaded at once,
+     * each through its own raw file store, and several blocks of each file
+     * are in flight at any time.
+     * At most <code>files*blocks</code> blocks are sent but not yet written.
+     * The size of the blocks is adjusted for each file from the throughput
+     * of its store, between the given bounds.
+     * The SHA-1 checksum is computed while uploading and checked against
+     * the one computed by the server when the file is saved.
+     */
+    private class FileUploader
+    {
+
+        /** The number of files uploaded at once.*/
+        private final int files;
+
+        /** The number of blocks of a file sent but not yet written.*/
+        private final int blocks;
+
+        /** The bounds of the block size.*/
+        private final int minBlockSize, maxBlockSize;
+
+        /**
+         * Creates a new uploader.
+         * @param files The number of files uploaded at once.
+         * @param blocks The number of blocks of a file in flight.
+         * @param minBlockSize The minimum size of a block.
+         * @param maxBlockSize The maximum size of a block.
+         */
+        FileUploader(int files, int blocks, int minBlockSize, int maxBlockSize)
+        {
+            this.files = files;
+            this.blocks = blocks;
+            this.minBlockSize = minBlockSize;
+            this.maxBlockSize = maxBlockSize;
+        }
+
+        /**
+         * Uploads the files.
+         * @param toUpload The files to upload.
+         * @return The original files, in the same order as the files.
+         */
+        List<OriginalFile> upload(List<File> toUpload)
+                throws Exception
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(files, toUpload.size())));
+            try {
+                List<Future<OriginalFile>> futures =
+                        new ArrayList<Future<OriginalFile>>();
+                for (final File file : toUpload) {
+                    futures.add(executor.submit(new Callable<OriginalFile>() {
+                        public OriginalFile call() throws Exception {
+                            return upload(file);
+                        }
+                    }));
+                }
+                List<OriginalFile> results = new ArrayList<OriginalFile>();
+                for (Future<OriginalFile> f : futures) {
+                    results.add(f.get());
+                }
+                return results;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Uploads a file.
+         * @param file The file to upload.
+         * @return The original file.
+         */
+        private OriginalFile upload(File file)
+                throws Exception
+        {
+            DataManagerFacility dm = gateway.getFacility(
+                    DataManagerFacility.class);
+            String name = file.getName();
+            String absolutePath = file.getAbsolutePath();
+            String path = absolutePath.substring(0,
+                    absolutePath.length()-name.length());
+            OriginalFile originalFile = new OriginalFileI();
+            originalFile.setName(omero.rtypes.rstring(name));
+            originalFile.setPath(omero.rtypes.rstring(path));
+            originalFile.setSize(omero.rtypes.rlong(file.length()));
+            final ChecksumAlgorithm checksumAlgorithm = new ChecksumAlgorithmI();
+            checksumAlgorithm.setValue(omero.rtypes.rstring(
+                    ChecksumAlgorithmSHA1160.value));
+            originalFile.setHasher(checksumAlgorithm);
+            originalFile.setMimetype(omero.rtypes.rstring(fileMimeType));
+            originalFile = (OriginalFile) dm.saveAndReturnObject(ctx,
+                    originalFile);
+            RawFileStorePrx store = null;
+            Deque<AsyncResult> pending = new ArrayDeque<AsyncResult>();
+            // the size of each block in flight.
+            Deque<Integer> sent = new ArrayDeque<Integer>();
+            BlockSizer sizer = new BlockSizer(minBlockSize, maxBlockSize,
+                    2*blocks);
+            try (FileInputStream stream = new FileInputStream(file)) {
+                store = gateway.getRawFileService(ctx);
+                store.setFileId(originalFile.getId().getValue());
+                long pos = 0;
+                int rlen;
+                // The data is marshalled when the request is sent
+                // so the buffer can be reused straight away.
+                byte[] buf = new byte[sizer.getBlockSize()];
+                // Compute the checksum from the bytes uploaded so that
+                // the file does not need to be read again.
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                while ((rlen = stream.read(buf)) > 0) {
+                    digest.update(buf, 0, rlen);
+                    sent.add(rlen);
+                    pending.add(store.begin_write(buf, pos, rlen));
+                    pos += rlen;
+                    if (pending.size() >= blocks)
+                        endWrite(store, pending, sent, sizer);
+                    if (buf.length != sizer.getBlockSize())
+                        buf = new byte[sizer.getBlockSize()];
+                }
+                while (!pending.isEmpty()) {
+                    endWrite(store, pending, sent, sizer);
+                }
+                originalFile = store.save();
+                String hash = toHex(digest.digest());
+                if (originalFile.getHash() == null ||
+                        !hash.equals(originalFile.getHash().getValue()))
+                    throw new Exception("Checksum mismatch for "+name);
+                return originalFile;
+            } catch (Exception e) {
+                throw new Exception("Cannot upload "+name, e);
+            } finally {
+                if (store != null) store.close();
+            }
+        }
+
+        /**
+         * Returns the hexadecimal representation of the checksum,
+         * as stored by the server.
+         * @param digest The checksum.
+         * @return See above.
+         */
+        private String toHex(byte[] digest)
+        {
+            StringBuilder sb = new StringBuilder(digest.length*2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Waits for the oldest block in flight to be written and records it.
+         * @param store The store the block was sent to.
+         * @param pending The requests in flight.
+         * @param sent The size of each block in flight.
+         * @param sizer Adjusts the block size for the store.
+         */
+        private void endWrite(RawFileStorePrx store, Deque<AsyncResult> pending,
+                Deque<Integer> sent, BlockSizer sizer)
+                throws Exception
+        {
+            store.end_write(pending.poll());
+            sizer.written(sent.poll());
+        }
+    }
+
+    /**
+     * Uploads three files of 32MB, two at a time.
+     */
+    private void uploadFiles()
+            throws Exception
+    {
+        List<File> files = new ArrayList<File>();
+        try {
+            Random random = new Random();
+            byte[] data = new byte[INC];
+            for (int i = 0; i < 3; i++) {
+                File file = File.createTempFile("temp-file-name_", ".tmp");
+                files.add(file);
+                // Write enough data for the file to be sent in many blocks.
+                FileOutputStream stream = new FileOutputStream(file);
+                try {
+                    for (int j = 0; j < 128; j++) {
+                        random.nextBytes(data);
+                        stream.write(data);
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+            // blocks between 256KB and 16MB
+            FileUploader uploader = new FileUploader(2, 4, INC, 64*INC);
+            List<OriginalFile> originalFiles = uploader.upload(files);
+            System.err.println("Files uploaded: "+originalFiles.size());
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
 // Load annotation
 // ===============
 
@@ -369,6 +663,7 @@ public class WriteData
             ctx = new SecurityContext(user.getGroupId());
             image = loadImage(imageId);
             createFileAnnotationAndLinkToImage();
+            uploadFiles();
             loadAnnotationsLinkedToImage();
             createNewDataset(projectId);
             createNewTag(projectId);